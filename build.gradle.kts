@@ -23,6 +23,9 @@ dependencies {
     // Expose build tools as implementation
     implementation(project(":cobalt-build-tools"))
 
+    // Used by the baseline compiler to generate bytecode at runtime
+    implementation("org.ow2.asm:asm:9.6")
+
     // Figura
     implementation("org.figuramc:memory-tracker:1.0-SNAPSHOT")
 
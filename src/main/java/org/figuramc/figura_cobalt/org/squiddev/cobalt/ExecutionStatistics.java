@@ -0,0 +1,274 @@
+package org.figuramc.figura_cobalt.org.squiddev.cobalt;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for various events within the Lua VM, used to determine where time is being spent.
+ * <p>
+ * Statistics are disabled by default, and can be enabled by starting the JVM with {@code -Dcobalt.statistics=true}.
+ * All instrumentation is guarded by {@link #ENABLED}, which is a constant, and so has no cost when disabled. When
+ * enabled, the {@link org.figuramc.figura_cobalt.org.squiddev.cobalt.function.BaselineCompiler} is not used, so every
+ * instruction is counted by the interpreter.
+ * <p>
+ * Starting the JVM with {@code -Dcobalt.statistics.timing=true} as well also records the time spent on each opcode.
+ * This reads the clock on every instruction, so is much slower than only counting them. Time is measured from when an
+ * instruction starts until the next one starts, and so includes any Java functions it calls. Lua functions called from
+ * Java (such as metamethods) are timed separately, and not included in the instruction which called them.
+ * <p>
+ * Counters are updated without any synchronisation, and so {@linkplain LuaState#getStatistics() snapshots} should be
+ * taken from the thread running the Lua state.
+ *
+ * @see LuaState#getStatistics()
+ */
+public final class ExecutionStatistics {
+	/**
+	 * Whether statistics are enabled.
+	 */
+	public static final boolean ENABLED = Boolean.getBoolean("cobalt.statistics");
+
+	/**
+	 * Whether the time spent on each opcode is recorded. This is only enabled when {@link #ENABLED} is.
+	 */
+	public static final boolean TIMING = ENABLED && Boolean.getBoolean("cobalt.statistics.timing");
+
+	/**
+	 * Tables are not associated with a {@link LuaState}, so rehashes are counted globally.
+	 */
+	private static final LongAdder tableRehashes = new LongAdder();
+
+	/**
+	 * Strings are shared between states, so {@linkplain StringPool interning} is also counted globally.
+	 */
+	private static final LongAdder internHits = new LongAdder();
+	private static final LongAdder internMisses = new LongAdder();
+
+	private final long[] opcodes = new long[Lua.NUM_OPCODES];
+	private final long[] opcodeTimes = new long[Lua.NUM_OPCODES];
+	private int timedOpcode = -1;
+	private long timedSince;
+	private long metamethodFallbacks;
+	private long nativeCalls;
+	private long tableRehashesStart = tableRehashes.sum();
+	private long internHitsStart = internHits.sum();
+	private long internMissesStart = internMisses.sum();
+
+	ExecutionStatistics() {
+	}
+
+	/**
+	 * Record an instruction being executed by the interpreter.
+	 *
+	 * @param opcode The instruction's opcode.
+	 */
+	public void onInstruction(int opcode) {
+		opcodes[opcode]++;
+
+		if (TIMING) {
+			long now = System.nanoTime();
+			if (timedOpcode >= 0) opcodeTimes[timedOpcode] += now - timedSince;
+			timedOpcode = opcode;
+			timedSince = now;
+		}
+	}
+
+	/**
+	 * Stop timing the current instruction, as the interpreter is being entered from Java code. This must be paired
+	 * with a call to {@link #resumeTiming(int)} when the interpreter is left, however that happens.
+	 *
+	 * @return The opcode which was being timed, or {@code -1}.
+	 */
+	public int pauseTiming() {
+		if (!TIMING) return -1;
+
+		int opcode = timedOpcode;
+		if (opcode >= 0) {
+			opcodeTimes[opcode] += System.nanoTime() - timedSince;
+			timedOpcode = -1;
+		}
+		return opcode;
+	}
+
+	/**
+	 * Stop timing the current instruction, and continue timing the instruction which was being timed when the
+	 * interpreter was entered. Time spent in the nested interpreter is not included in the outer instruction.
+	 *
+	 * @param opcode The opcode returned by {@link #pauseTiming()}.
+	 */
+	public void resumeTiming(int opcode) {
+		if (!TIMING) return;
+
+		long now = System.nanoTime();
+		if (timedOpcode >= 0) opcodeTimes[timedOpcode] += now - timedSince;
+		timedOpcode = opcode;
+		timedSince = now;
+	}
+
+	/**
+	 * Record an operation falling back to a metamethod, such as arithmetic on a table, or indexing a missing key.
+	 */
+	public void onMetamethod() {
+		metamethodFallbacks++;
+	}
+
+	/**
+	 * Record a call to a Java function.
+	 */
+	public void onNativeCall() {
+		nativeCalls++;
+	}
+
+	/**
+	 * Record a table being rehashed.
+	 */
+	static void onTableRehash() {
+		tableRehashes.increment();
+	}
+
+	/**
+	 * Record a string being interned.
+	 *
+	 * @param hit Whether an equal string was already in the pool.
+	 */
+	static void onIntern(boolean hit) {
+		(hit ? internHits : internMisses).increment();
+	}
+
+	void reset() {
+		Arrays.fill(opcodes, 0);
+		Arrays.fill(opcodeTimes, 0);
+		timedOpcode = -1;
+		metamethodFallbacks = 0;
+		nativeCalls = 0;
+		tableRehashesStart = tableRehashes.sum();
+		internHitsStart = internHits.sum();
+		internMissesStart = internMisses.sum();
+	}
+
+	Snapshot snapshot() {
+		return new Snapshot(
+			opcodes.clone(), opcodeTimes.clone(), metamethodFallbacks, nativeCalls, tableRehashes.sum() - tableRehashesStart,
+			internHits.sum() - internHitsStart, internMisses.sum() - internMissesStart
+		);
+	}
+
+	/**
+	 * An immutable copy of the counters at a point in time.
+	 */
+	public static final class Snapshot {
+		private final long[] opcodes;
+		private final long[] opcodeTimes;
+		private final long metamethodFallbacks;
+		private final long nativeCalls;
+		private final long tableRehashes;
+		private final long internHits;
+		private final long internMisses;
+
+		Snapshot(long[] opcodes, long[] opcodeTimes, long metamethodFallbacks, long nativeCalls, long tableRehashes, long internHits, long internMisses) {
+			this.opcodes = opcodes;
+			this.opcodeTimes = opcodeTimes;
+			this.metamethodFallbacks = metamethodFallbacks;
+			this.nativeCalls = nativeCalls;
+			this.tableRehashes = tableRehashes;
+			this.internHits = internHits;
+			this.internMisses = internMisses;
+		}
+
+		/**
+		 * Get the number of times an opcode was executed.
+		 *
+		 * @param opcode The opcode, such as {@link Lua#OP_ADD}.
+		 * @return The number of times it was executed.
+		 */
+		public long getOpcodeCount(int opcode) {
+			return opcode >= 0 && opcode < opcodes.length ? opcodes[opcode] : 0;
+		}
+
+		/**
+		 * Get the total time spent executing an opcode. This is always 0 unless {@linkplain #TIMING timing} is
+		 * enabled.
+		 *
+		 * @param opcode The opcode, such as {@link Lua#OP_ADD}.
+		 * @return The time spent on this opcode, in nanoseconds.
+		 */
+		public long getOpcodeTime(int opcode) {
+			return opcode >= 0 && opcode < opcodeTimes.length ? opcodeTimes[opcode] : 0;
+		}
+
+		/**
+		 * Get the total number of instructions executed.
+		 *
+		 * @return The number of instructions executed.
+		 */
+		public long getInstructionCount() {
+			long total = 0;
+			for (long count : opcodes) total += count;
+			return total;
+		}
+
+		/**
+		 * Get the number of operations which fell back to a metamethod.
+		 *
+		 * @return The number of metamethod fallbacks.
+		 */
+		public long getMetamethodFallbacks() {
+			return metamethodFallbacks;
+		}
+
+		/**
+		 * Get the number of calls to Java functions.
+		 *
+		 * @return The number of native calls.
+		 */
+		public long getNativeCalls() {
+			return nativeCalls;
+		}
+
+		/**
+		 * Get the number of table rehashes. As tables are not associated with a {@link LuaState}, this includes those
+		 * performed by any state.
+		 *
+		 * @return The number of table rehashes.
+		 */
+		public long getTableRehashes() {
+			return tableRehashes;
+		}
+
+		/**
+		 * Get the number of strings which were already in the {@linkplain StringPool string pool}, and so did not
+		 * need to be added. As strings are not associated with a {@link LuaState}, this includes those created by any
+		 * state, or by Java code.
+		 *
+		 * @return The number of string pool hits.
+		 */
+		public long getInternHits() {
+			return internHits;
+		}
+
+		/**
+		 * Get the number of strings which were not already in the {@linkplain StringPool string pool}. Like
+		 * {@link #getInternHits()}, this is counted globally.
+		 *
+		 * @return The number of string pool misses.
+		 */
+		public long getInternMisses() {
+			return internMisses;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder out = new StringBuilder();
+			for (int i = 0; i < opcodes.length; i++) {
+				if (opcodes[i] == 0) continue;
+				out.append(Lua.getOpName(i)).append(": ").append(opcodes[i]);
+				if (TIMING) out.append(" (").append(opcodeTimes[i] / 1000).append("us)");
+				out.append('\n');
+			}
+			out.append("metamethod fallbacks: ").append(metamethodFallbacks).append('\n');
+			out.append("native calls: ").append(nativeCalls).append('\n');
+			out.append("table rehashes: ").append(tableRehashes).append('\n');
+			out.append("string pool hits: ").append(internHits).append(", misses: ").append(internMisses).append('\n');
+			return out.toString();
+		}
+	}
+}
@@ -47,6 +47,20 @@ public final class LuaInteger extends LuaNumber {
 
 	private static final LuaInteger[] intValues = new LuaInteger[512];
 
+	/**
+	 * The exclusive upper bound of {@link #largeValues}. This is large enough to cover the indices of most arrays and
+	 * numeric {@code for} loops.
+	 */
+	private static final int LARGE_CACHE_LIMIT = 1 << 14;
+
+	/**
+	 * A lazily populated cache of integers from 256 to {@link #LARGE_CACHE_LIMIT}.
+	 * <p>
+	 * This is written to without synchronisation: as {@link LuaInteger}s are immutable, a race can only result in
+	 * two equal instances being created.
+	 */
+	private static final LuaInteger[] largeValues = new LuaInteger[LARGE_CACHE_LIMIT];
+
 	static {
 		for (int i = 0; i < 512; i++) {
 			intValues[i] = new LuaInteger(i - 256);
@@ -54,7 +68,12 @@ public final class LuaInteger extends LuaNumber {
 	}
 
 	public static LuaInteger valueOf(int i) {
-		return i <= 255 && i >= -256 ? intValues[i + 256] : new LuaInteger(i);
+		if (i <= 255 && i >= -256) return intValues[i + 256];
+		if (i < 0 || i >= LARGE_CACHE_LIMIT) return new LuaInteger(i);
+
+		LuaInteger value = largeValues[i];
+		if (value == null) largeValues[i] = value = new LuaInteger(i);
+		return value;
 	}
 
 	// TODO consider moving this to LuaValue
@@ -69,9 +88,7 @@ public final class LuaInteger extends LuaNumber {
 	 */
 	public static LuaNumber valueOf(long l) {
 		int i = (int) l;
-		return l == i ? (i <= 255 && i >= -256 ? intValues[i + 256] :
-			new LuaInteger(i)) :
-			LuaDouble.valueOf(l);
+		return l == i ? valueOf(i) : LuaDouble.valueOf(l);
 	}
 
 	/**
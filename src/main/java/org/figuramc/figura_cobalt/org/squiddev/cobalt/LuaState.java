@@ -31,6 +31,7 @@ import org.figuramc.figura_cobalt.org.squiddev.cobalt.compiler.BytecodeFormat;
 import org.figuramc.figura_cobalt.org.squiddev.cobalt.compiler.LoadState;
 import org.figuramc.figura_cobalt.org.squiddev.cobalt.compiler.LuaC;
 import org.figuramc.figura_cobalt.org.squiddev.cobalt.debug.DebugFrame;
+import org.figuramc.figura_cobalt.org.squiddev.cobalt.function.BaselineCompiler;
 import org.figuramc.figura_cobalt.org.squiddev.cobalt.interrupt.InterruptAction;
 import org.figuramc.figura_cobalt.org.squiddev.cobalt.interrupt.InterruptHandler;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -72,6 +73,14 @@ public class LuaState {
 	 */
 	public LuaTable threadMetatable;
 
+	/**
+	 * The {@code next} function, and the iterator function returned by {@code ipairs}. These are set by
+	 * {@link org.figuramc.figura_cobalt.org.squiddev.cobalt.lib.BaseLib}, and allow the interpreter to iterate over
+	 * tables in generic {@code for} loops without calling them.
+	 */
+	public @Nullable LuaValue nextFunction;
+	public @Nullable LuaValue inextFunction;
+
 	/**
 	 * The compiler for this threstate
 	 */
@@ -81,6 +90,14 @@ public class LuaState {
 
 	private volatile boolean interrupted;
 	private final InterruptHandler interruptHandler;
+	private final boolean preciseInterrupts;
+	private long instructionBudget;
+
+	/**
+	 * Counters for events within this state, or {@code null} if {@linkplain ExecutionStatistics#ENABLED statistics are
+	 * disabled}.
+	 */
+	public final @Nullable ExecutionStatistics statistics = ExecutionStatistics.ENABLED ? new ExecutionStatistics() : null;
 
 	// Figura: tracker for allocations done in this LuaState.
 	public final @Nullable AllocationTracker<LuaUncatchableError> allocationTracker;
@@ -111,6 +128,8 @@ public class LuaState {
 	protected LuaState(Builder builder) throws LuaUncatchableError {
 		compiler = builder.compiler;
 		interruptHandler = builder.interruptHandler;
+		preciseInterrupts = builder.preciseInterrupts;
+		instructionBudget = builder.instructionBudget;
 		reportError = builder.reportError;
 		bytecodeFormat = builder.bytecodeFormat;
 		allocationTracker = builder.allocationTracker;
@@ -207,6 +226,82 @@ public class LuaState {
 		return interrupted;
 	}
 
+	/**
+	 * Whether interrupts and debug hooks are checked before every instruction.
+	 *
+	 * @return If precise interrupts are enabled.
+	 * @see Builder#preciseInterrupts(boolean)
+	 */
+	public boolean hasPreciseInterrupts() {
+		return preciseInterrupts;
+	}
+
+	/**
+	 * Take a snapshot of the {@linkplain ExecutionStatistics statistics} for this state.
+	 *
+	 * @return The current statistics.
+	 * @throws IllegalStateException If statistics are not enabled.
+	 */
+	public ExecutionStatistics.Snapshot getStatistics() {
+		if (statistics == null) throw new IllegalStateException("Statistics are not enabled (run with -Dcobalt.statistics=true)");
+		return statistics.snapshot();
+	}
+
+	/**
+	 * Reset the {@linkplain ExecutionStatistics statistics} for this state. This does nothing if statistics are not
+	 * enabled.
+	 */
+	public void resetStatistics() {
+		if (statistics != null) statistics.reset();
+	}
+
+	/**
+	 * Get the number of instructions this state may execute before {@linkplain #handleBudgetExhausted() running out}.
+	 *
+	 * @return The remaining instruction budget. This may be negative if the budget has been exceeded.
+	 * @see Builder#instructionBudget(long)
+	 */
+	public long getInstructionBudget() {
+		return instructionBudget;
+	}
+
+	/**
+	 * Set the number of instructions this state may execute. This is typically used to refill the budget between
+	 * calls into the VM (or from within the {@link InterruptHandler}).
+	 *
+	 * @param budget The new instruction budget.
+	 * @see Builder#instructionBudget(long)
+	 */
+	public void setInstructionBudget(long budget) {
+		instructionBudget = budget;
+	}
+
+	/**
+	 * Consume part of the instruction budget. This is called at safepoints by the interpreter and compiled code.
+	 *
+	 * @param count The number of instructions executed since the last call.
+	 * @return Whether the budget has been exhausted. If so, the caller should call {@link #handleBudgetExhausted()}.
+	 */
+	public boolean useInstructions(int count) {
+		return (instructionBudget -= count) <= 0;
+	}
+
+	/**
+	 * Handle the instruction budget being exhausted. Calls to this method should be guarded with a check of
+	 * {@link #useInstructions(int)}.
+	 * <p>
+	 * This is treated the same as an interrupt, and so calls the current {@link InterruptHandler}, which may refill the
+	 * budget and continue, suspend the VM, or throw an error. If there is no interrupt handler, this throws an error.
+	 *
+	 * @throws LuaError        If the handler threw an error, or there is no handler.
+	 * @throws UnwindThrowable If the handler requested the runtime be {@linkplain InterruptAction#SUSPEND suspended}.
+	 * @see #handleInterrupt()
+	 */
+	public void handleBudgetExhausted() throws UnwindThrowable, LuaError, LuaUncatchableError {
+		if (interruptHandler == null) throw new LuaError("instruction budget exhausted", allocationTracker);
+		handleInterrupt();
+	}
+
 	/**
 	 * Handle the current runtime interrupt. Calls to this method should be guarded with a check of
 	 * {@link #isInterrupted()}.
@@ -269,6 +364,8 @@ public class LuaState {
 	public static class Builder {
 		private LoadState.FunctionFactory compiler = LoadState::interpretedFunction;
 		private @Nullable InterruptHandler interruptHandler;
+		private boolean preciseInterrupts;
+		private long instructionBudget = Long.MAX_VALUE;
 		private @Nullable ErrorReporter reportError;
 		private @Nullable BytecodeFormat bytecodeFormat;
 		private @Nullable AllocationTracker<LuaUncatchableError> allocationTracker;
@@ -307,6 +404,44 @@ public class LuaState {
 			return this;
 		}
 
+		/**
+		 * Check for interrupts (and changes to debug hooks) before every instruction.
+		 * <p>
+		 * By default, these are only checked at safepoints: on function calls and returns, and backwards jumps. This
+		 * still means an interrupt is handled within a bounded number of instructions, but it may be handled slightly
+		 * later than {@link LuaState#interrupt()} was called. This also disables the {@link BaselineCompiler}, and so
+		 * should only be used for debugging.
+		 *
+		 * @param precise Whether to use precise interrupts.
+		 * @return This builder
+		 */
+		public Builder preciseInterrupts(boolean precise) {
+			preciseInterrupts = precise;
+			return this;
+		}
+
+		/**
+		 * Limit the number of instructions this Lua state may execute.
+		 * <p>
+		 * The budget is decremented at the same safepoints interrupts are checked at (see
+		 * {@link #preciseInterrupts(boolean)}). Once it reaches zero, the {@linkplain #interruptHandler(InterruptHandler)
+		 * interrupt handler} is called, which may {@linkplain LuaState#setInstructionBudget(long) refill} the budget,
+		 * suspend the VM or throw an error. Without an interrupt handler, an error is thrown.
+		 * <p>
+		 * Both the interpreter and compiled code charge the instructions actually executed, including those run by
+		 * functions called from Java (such as metamethods) which return before reaching a safepoint. Instructions
+		 * charged when a function exits are only checked against the budget at the caller's next safepoint.
+		 *
+		 * @param budget The initial instruction budget.
+		 * @return This builder
+		 * @see LuaState#setInstructionBudget(long)
+		 */
+		public Builder instructionBudget(long budget) {
+			if (budget <= 0) throw new IllegalArgumentException("budget must be positive");
+			instructionBudget = budget;
+			return this;
+		}
+
 		/**
 		 * Set the error callback used for this Lua state.
 		 *
@@ -30,8 +30,15 @@ import org.figuramc.figura_cobalt.cc.tweaked.cobalt.internal.string.NumberParser
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.io.*;
+import java.lang.ref.SoftReference;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Objects;
+import java.util.SplittableRandom;
 
 import static org.figuramc.figura_cobalt.org.squiddev.cobalt.Constants.NIL;
 
@@ -45,31 +52,96 @@ import static org.figuramc.figura_cobalt.org.squiddev.cobalt.Constants.NIL;
  * {@link LuaString} values are generally not mutable once constructed,
  * so multiple {@link LuaString} values can chare a single byte array.
  * <p>
- * Currently {@link LuaString}s are pooled via a centrally managed weak table.
+ * Short {@link LuaString}s are pooled via a centrally managed weak table (see {@link StringPool}).
  * To ensure that as many string values as possible take advantage of this,
  * Constructors are not exposed directly.  As with number, booleans, and nil,
  * instance construction should be via {@link LuaString#valueOfNoCopy(byte[])} or similar API.
+ * <p>
+ * Long strings built by concatenation ({@link #valueOfStrings}) are represented as a "rope", which holds the strings
+ * it was built from rather than a byte array. The rope is flattened into a single byte array the first time its
+ * contents are needed. This avoids repeatedly copying the accumulated string when building a string in a loop
+ * (e.g. {@code s = s .. piece}). Appending to a rope flattens it into a buffer with spare capacity, which later
+ * concatenations append to in place.
  *
  * @see LuaValue
  */
 public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	/**
-	 * Size of cache of recent short strings. This is the maximum number of LuaStrings that
-	 * will be retained in the cache of recent short strings. Must be a power of 2.
+	 * Size of cache of recent short strings, when using the {@code recent} {@linkplain StringPool string pool}. This is
+	 * the maximum number of LuaStrings that will be retained in the cache of recent short strings. Must be a power of 2.
 	 */
 	public static final int RECENT_STRINGS_CACHE_SIZE = 128;
 
 	/**
-	 * Maximum length of a string to be considered for recent short strings caching.
-	 * This effectively limits the total memory that can be spent on the recent strings cache,
-	 * because no LuaString whose backing exceeds this length will be put into the cache.
+	 * Maximum length of a string to be considered for {@linkplain StringPool interning}.
+	 * This effectively limits the total memory that can be spent on the string pool,
+	 * because no LuaString whose backing exceeds this length will be put into the pool.
 	 */
 	public static final int RECENT_STRINGS_MAX_LENGTH = 32;
 
 	/**
-	 * The contents of this string.
+	 * The minimum length of a concatenation to be represented as a rope. Shorter strings are cheap enough to copy
+	 * immediately.
+	 */
+	private static final int ROPE_MIN_LENGTH = 128;
+
+	/**
+	 * The maximum length of a string whose Java {@link String} equivalent will be cached, either by
+	 * {@link #toJavaString(AllocationTracker)} or {@link #valueOfCached(AllocationTracker, String)}.
+	 */
+	private static final int JAVA_STRING_CACHE_MAX_LENGTH = 128;
+
+	/**
+	 * The size of the cache used by {@link #valueOfCached(AllocationTracker, String)}. Must be a power of 2.
+	 */
+	private static final int JAVA_STRING_CACHE_SIZE = 256;
+
+	/**
+	 * The maximum depth of a rope. Concatenations which would exceed this are {@linkplain #append(AllocationTracker,
+	 * LuaString[], int) flattened immediately}, bounding the number of strings a rope keeps alive.
+	 */
+	private static final int ROPE_MAX_DEPTH = 32;
+
+	/**
+	 * A random seed for {@link #hashCode()}, chosen when the class is loaded. This makes it infeasible for scripts to
+	 * construct many strings with the same hash, and so degrade table lookups to a linear scan.
+	 */
+	private static final long HASH_SEED = new SplittableRandom().nextLong();
+	private static final long HASH_PRIME_1 = 0x9E3779B185EBCA87L;
+	private static final long HASH_PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+
+	/**
+	 * Constants and a little-endian view of byte arrays, used to hash and search strings eight bytes at a time.
 	 */
-	private final byte[] contents;
+	private static final long SWAR_ONES = 0x0101010101010101L;
+	private static final long SWAR_LOWS = 0x7F7F7F7F7F7F7F7FL;
+	private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	/**
+	 * The contents of this string, or {@code null} if this is a rope which has not been {@linkplain #flatten()
+	 * flattened} yet.
+	 * <p>
+	 * Strings may be shared between threads, so this is volatile to ensure the flattened array is safely published.
+	 */
+	private volatile byte @Nullable [] contents;
+
+	/**
+	 * The strings that this rope is built from, or {@code null} if this string is flat. This is only cleared (while
+	 * holding this string's lock) after {@link #contents} has been set.
+	 */
+	private LuaString @Nullable [] parts;
+
+	/**
+	 * The depth of this rope, or {@code 0} if this string was flat when constructed.
+	 */
+	private final int depth;
+
+	/**
+	 * Whether the bytes after this string in {@link #contents} are unused, and so this string can be appended to in
+	 * place. This is only set on strings created by {@link #append(AllocationTracker, LuaString[], int)}, and is
+	 * cleared (while holding this string's lock) once a concatenation has claimed the remaining space.
+	 */
+	private boolean appendable;
 
 	/**
 	 * The offset into the byte array, 0 means start at the first byte
@@ -83,27 +155,19 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 
 	private int hashCode;
 
-	private static class Cache {
-		/**
-		 * Simple cache of recently created strings that are short.
-		 * This is simply a list of strings, indexed by their hash codes modulo the cache size
-		 * that have been recently constructed.  If a string is being constructed frequently
-		 * from different contexts, it will generally may show up as a cache hit and resolve
-		 * to the same value.
-		 */
-		public final LuaString[] recentShortStrings = new LuaString[RECENT_STRINGS_CACHE_SIZE];
-
-		public LuaString get(LuaString s) {
-			final int index = s.hashCode() & (RECENT_STRINGS_CACHE_SIZE - 1);
-			final LuaString cached = recentShortStrings[index];
-			if (cached != null && s.equals(cached)) {
-				return cached;
-			}
-			recentShortStrings[index] = s;
-			return s;
-		}
+	/**
+	 * A cached copy of {@link #toJavaString(AllocationTracker)}, for strings no longer than
+	 * {@link #JAVA_STRING_CACHE_MAX_LENGTH}. This is held softly, and so is cleared under memory pressure.
+	 */
+	private @Nullable SoftReference<String> javaString;
+
+	/**
+	 * A cache of Java strings which have been converted with {@link #valueOfCached(AllocationTracker, String)}, indexed by the Java
+	 * string's hash code.
+	 */
+	private static final CachedString[] javaStringCache = new CachedString[JAVA_STRING_CACHE_SIZE];
 
-		public static final ThreadLocal<Cache> INSTANCE = ThreadLocal.withInitial(Cache::new);
+	private record CachedString(String javaString, LuaString luaString) {
 	}
 
 	/**
@@ -130,6 +194,30 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 		}
 	}
 
+	/**
+	 * Get a {@link LuaString} for a Java string which is converted repeatedly, such as a constant table key.
+	 * <p>
+	 * Recently converted short strings are stored in a small global cache, avoiding the need to allocate and encode a
+	 * new string each time. As strings in the cache may be used by multiple {@link LuaState}s, they are not tracked by
+	 * any allocation tracker.
+	 *
+	 * @param allocTracker The allocation tracker, used if this string is too long to be cached.
+	 * @param string       The Java string to convert.
+	 * @return The equivalent {@link LuaString}.
+	 */
+	public static LuaString valueOfCached(@Nullable AllocationTracker<LuaUncatchableError> allocTracker, String string) throws LuaUncatchableError {
+		if (string.length() > JAVA_STRING_CACHE_MAX_LENGTH) return valueOf(allocTracker, string);
+
+		int index = string.hashCode() & (JAVA_STRING_CACHE_SIZE - 1);
+		CachedString cached = javaStringCache[index];
+		if (cached != null && cached.javaString().equals(string)) return cached.luaString();
+
+		LuaString luaString = valueOfNoAlloc(string);
+		luaString.javaString = new SoftReference<>(string);
+		javaStringCache[index] = new CachedString(string, luaString);
+		return luaString;
+	}
+
 	/**
 	 * Construct a {@link LuaString} around a byte array without copying the contents.
 	 * <p>
@@ -144,7 +232,7 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 		// Don't bother tracking strings that are shorter than RECENT_STRINGS_MAX_LENGTH.
 		// They aren't the memory hogs anyway.
 		if (bytes.length < RECENT_STRINGS_MAX_LENGTH) {
-			return Cache.INSTANCE.get().get(new LuaString(bytes, off, len));
+			return StringPool.intern(new LuaString(bytes, off, len));
 		} else if (forceNoCopy || len >= bytes.length / 2) {
 			// Reuse backing only when more than half the bytes are part of the result.
 			// Backing is reused, don't track.
@@ -155,7 +243,7 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 			if (allocTracker != null) allocTracker.track(b);
 			System.arraycopy(bytes, off, b, 0, len);
 			LuaString string = new LuaString(b, 0, len);
-			return len < RECENT_STRINGS_MAX_LENGTH ? Cache.INSTANCE.get().get(string) : string;
+			return len < RECENT_STRINGS_MAX_LENGTH ? StringPool.intern(string) : string;
 		}
 	}
 	public static LuaString valueOf(@Nullable AllocationTracker<LuaUncatchableError> allocTracker, byte[] bytes, int off, int len) throws LuaUncatchableError {
@@ -197,7 +285,32 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	 */
 	public static LuaString valueOfStrings(@Nullable AllocationTracker<LuaUncatchableError> allocTracker, LuaValue[] contents, int offset, int length, int strLength) throws LuaUncatchableError {
 		if (length == 0 || strLength == 0) return Constants.EMPTYSTRING;
-		if (length == 1) return (LuaString) contents[0];
+		if (length == 1) return (LuaString) contents[offset];
+
+		if (strLength >= ROPE_MIN_LENGTH) {
+			LuaString[] parts = new LuaString[length];
+			int depth = 0;
+			for (int i = 0; i < length; i++) {
+				LuaString part = parts[i] = (LuaString) contents[offset + i];
+				depth = Math.max(depth, part.depth);
+			}
+
+			// Appending to a rope or an appendable string (i.e. s = s .. piece) flattens into a growable buffer, rather
+			// than nesting another rope. This means chains of appends never hold several ropes, each charged for the
+			// whole string. Reading appendable without a lock is fine, as append() checks it again.
+			LuaString first = parts[0];
+			if (depth >= ROPE_MAX_DEPTH || first.parts != null || first.appendable) {
+				return append(allocTracker, parts, strLength);
+			}
+
+			LuaString rope = new LuaString(parts, strLength, depth + 1);
+			// Account for the byte array this will eventually be flattened into.
+			if (allocTracker != null) {
+				allocTracker.track(parts);
+				allocTracker.track(rope, strLength);
+			}
+			return rope;
+		}
 
 		byte[] out = new byte[strLength];
 		if (allocTracker != null) allocTracker.track(out);
@@ -206,6 +319,88 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 		return valueOfNoCopy(out); // out is already tracked
 	}
 
+	/**
+	 * Flatten a concatenation which starts with a rope or appendable string, or which would be too deep to be a rope.
+	 * <p>
+	 * Rather than copying the rope into an array of exactly the right size, this uses a buffer with spare capacity. If
+	 * the rope starts with a string previously created by this method, its buffer is reused and only the new bytes are
+	 * copied. This means repeatedly appending to a string takes amortised linear time.
+	 *
+	 * @param allocTracker The allocation tracker to charge for a new buffer.
+	 * @param parts        The strings to concatenate.
+	 * @param length       The length of the resulting string.
+	 * @return The flattened string.
+	 */
+	private static LuaString append(@Nullable AllocationTracker<LuaUncatchableError> allocTracker, LuaString[] parts, int length) throws LuaUncatchableError {
+		LuaString prefix = parts[0];
+		for (LuaString[] children; (children = prefix.parts) != null; ) prefix = children[0];
+
+		byte[] buffer;
+		int start;
+		if (prefix.claimTail()) {
+			buffer = prefix.contents();
+			start = prefix.length;
+			if (buffer.length < length) {
+				byte[] grown = new byte[bufferCapacity(length)];
+				if (allocTracker != null) allocTracker.track(grown);
+				System.arraycopy(buffer, 0, grown, 0, start);
+				buffer = grown;
+			}
+		} else {
+			buffer = new byte[bufferCapacity(length)];
+			if (allocTracker != null) allocTracker.track(buffer);
+			start = 0;
+		}
+
+		copyParts(parts, buffer, start, length);
+
+		LuaString result = new LuaString(buffer, 0, length);
+		result.appendable = true;
+		return result;
+	}
+
+	private static int bufferCapacity(int length) {
+		return (int) Math.min((long) length * 2, Integer.MAX_VALUE - 8);
+	}
+
+	/**
+	 * Claim the unused space after this string, so that it can be appended to in place.
+	 *
+	 * @return Whether the space was claimed. This is only true once for each string.
+	 */
+	private synchronized boolean claimTail() {
+		if (!appendable) return false;
+		appendable = false;
+		return true;
+	}
+
+	/**
+	 * Copy the contents of a rope into an array.
+	 * <p>
+	 * This copies from right to left using an explicit stack, rather than recursing into each part. Ropes built by
+	 * appending to a string are nested in their first part, so this only needs a constant amount of space for them.
+	 *
+	 * @param parts The parts of the rope.
+	 * @param dest  The array to copy into.
+	 * @param start The position in {@code dest} to stop copying at. Bytes of the rope before this are not copied.
+	 * @param end   The position in {@code dest} where the rope ends.
+	 */
+	private static void copyParts(LuaString[] parts, byte[] dest, int start, int end) {
+		ArrayDeque<LuaString> pending = new ArrayDeque<>();
+		for (LuaString part : parts) pending.push(part);
+
+		while (end > start) {
+			LuaString part = pending.pop();
+			LuaString[] children = part.parts;
+			if (children != null) {
+				for (LuaString child : children) pending.push(child);
+			} else {
+				end -= part.length;
+				System.arraycopy(part.contents(), part.offset, dest, end, part.length);
+			}
+		}
+	}
+
 	/**
 	 * Construct a {@link LuaString} around a byte array without copying the contents.
 	 * <p>
@@ -220,20 +415,63 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 		this.contents = contents;
 		this.offset = offset;
 		this.length = length;
+		this.depth = 0;
+	}
+
+	private LuaString(LuaString[] parts, int length, int depth) {
+		super(Constants.TSTRING);
+		this.parts = parts;
+		this.offset = 0;
+		this.length = length;
+		this.depth = depth;
+	}
+
+	/**
+	 * Get the contents of this string, flattening it if needed.
+	 *
+	 * @return The underlying byte array. Only the bytes in the range {@code [offset, offset+length)} belong to this
+	 * string.
+	 */
+	private byte[] contents() {
+		byte[] contents = this.contents;
+		return contents == null ? flatten() : contents;
+	}
+
+	private synchronized byte[] flatten() {
+		// We have been flattened since checking contents.
+		byte[] contents = this.contents;
+		if (contents != null) return contents;
+
+		LuaString[] parts = Objects.requireNonNull(this.parts);
+		byte[] out = new byte[length];
+		copyParts(parts, out, 0, length);
+
+		// Release the parts, so they can be garbage collected.
+		this.contents = out;
+		this.parts = null;
+		return out;
 	}
 
 	@Override
 	@Deprecated
 	public String toString() {
 		try {
-			return decode(null, contents, offset, length);
+			return toJavaString(null);
 		} catch (LuaUncatchableError impossible) {
 			throw new IllegalStateException("Should never happen. Contact Figura devs!", impossible);
 		}
 	}
 
 	public String toJavaString(@Nullable AllocationTracker<LuaUncatchableError> allocTracker) throws LuaUncatchableError {
-		return decode(allocTracker, contents, offset, length);
+		if (length > JAVA_STRING_CACHE_MAX_LENGTH) return decode(allocTracker, contents(), offset, length);
+
+		SoftReference<String> cached = javaString;
+		String string = cached == null ? null : cached.get();
+		if (string != null) return string;
+
+		string = decode(allocTracker, contents(), offset, length);
+		javaString = new SoftReference<>(string);
+		return string;
 	}
 
 	@Override
@@ -248,7 +486,7 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	//region Equality and comparison
 	@Override
 	public int compareTo(LuaString rhs) {
-		byte[] bytes = contents, rhsBytes = rhs.contents;
+		byte[] bytes = contents(), rhsBytes = rhs.contents();
 		// Find the first mismatched character in 0..n
 		int len = Math.min(length, rhs.length);
 		int mismatch = Arrays.mismatch(bytes, offset, offset + len, rhsBytes, rhs.offset, rhs.offset + len);
@@ -266,10 +504,12 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	private boolean equals(LuaString s) {
 		if (this == s) return true;
 		if (s.length != length) return false;
-		if (contents == s.contents && s.offset == offset) return true;
+
+		byte[] contents = contents(), otherContents = s.contents();
+		if (contents == otherContents && s.offset == offset) return true;
 		if (s.hashCode() != hashCode()) return false;
 
-		return equals(contents, offset, s.contents, s.offset, length);
+		return equals(contents, offset, otherContents, s.offset, length);
 	}
 
 	// Figura function
@@ -277,6 +517,7 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	public boolean equals(String javaString) {
 		int c = javaString.length();
 		if (this.length != c) return false;
+		byte[] contents = contents();
         for (int i = 0; i < c; i++)
 			if ((contents[this.offset + i] & 0xFF) != javaString.charAt(i))
 				return false;
@@ -284,7 +525,7 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	}
 
 	public static boolean equals(LuaString a, int aOffset, LuaString b, int bOffset, int length) {
-		return equals(a.contents, a.offset + aOffset, b.contents, b.offset + bOffset, length);
+		return equals(a.contents(), a.offset + aOffset, b.contents(), b.offset + bOffset, length);
 	}
 
 	private static boolean equals(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
@@ -299,6 +540,7 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 		int o = this.length - c;
 		if (o < 0) return false;
 		o += this.offset;
+		byte[] contents = contents();
 		for (int i = 0; i < c; i++)
 			if ((contents[o + i] & 0xFF) != javaString.charAt(i))
 				return false;
@@ -311,37 +553,52 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 		int h = hashCode;
 		if (h != 0) return h;
 
-		h = length;  /* seed */
-		int step = (length >> 5) + 1;  /* if string is too long, don't hash all its chars */
-		for (int l1 = length; l1 >= step; l1 -= step)  /* compute hash */ {
-			h = h ^ ((h << 5) + (h >> 2) + (((int) contents[offset + l1 - 1]) & 0x0FF));
-		}
-		return hashCode = h;
+		// Hash the whole string, eight bytes at a time. Each word is mixed in as in xxHash's round function, and the
+		// final hash is passed through MurmurHash3's finaliser so the low bits (used by LuaTable) depend on every byte.
+		byte[] contents = contents();
+		int position = offset, end = offset + length;
+		long hash = HASH_SEED + length * HASH_PRIME_1;
+		for (; position + 8 <= end; position += 8) hash = hashRound(hash, (long) LONG_VIEW.get(contents, position));
+
+		long tail = 0;
+		for (int shift = 0; position < end; position++, shift += 8) tail |= (contents[position] & 0xFFL) << shift;
+		hash = hashRound(hash, tail);
+
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hashCode = (int) hash;
+	}
+
+	private static long hashRound(long hash, long word) {
+		return Long.rotateLeft(hash + word * HASH_PRIME_2, 31) * HASH_PRIME_1;
 	}
 	// endregion
 
 	// region String operations
 	// Substring of existing string -> no real new allocation
 	public LuaString substringOfLen(int beginIndex, int length) {
-		return valueOfNoCopy(contents, offset + beginIndex, length);
+		return valueOfNoCopy(contents(), offset + beginIndex, length);
 	}
 
 	public LuaString substringOfEnd(int beginIndex, int endIndex) {
-		return valueOfNoCopy(contents, offset + beginIndex, endIndex - beginIndex);
+		return valueOfNoCopy(contents(), offset + beginIndex, endIndex - beginIndex);
 	}
 
 	public LuaString substring(int beginIndex) {
-		return valueOfNoCopy(contents, offset + beginIndex, length - 1);
+		return valueOfNoCopy(contents(), offset + beginIndex, length - 1);
 	}
 
 	public byte byteAt(int index) {
 		if (index < 0 || index >= length) throw new IndexOutOfBoundsException();
-		return contents[offset + index];
+		return contents()[offset + index];
 	}
 
 	public int charAt(int index) {
 		if (index < 0 || index >= length) throw new IndexOutOfBoundsException();
-		return Byte.toUnsignedInt(contents[offset + index]);
+		return Byte.toUnsignedInt(contents()[offset + index]);
 	}
 
 	public boolean startsWith(byte character) {
@@ -355,12 +612,21 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	 * @return index of first match in the {@code accept} string, or -1 if not found.
 	 */
 	public int indexOfAny(LuaString accept) {
-		final int limit = offset + length;
-		final int searchLimit = accept.offset + accept.length;
-		for (int i = offset; i < limit; ++i) {
-			for (int j = accept.offset; j < searchLimit; ++j) {
-				if (contents[i] == accept.contents[j]) return i - offset;
-			}
+		if (accept.length == 0) return -1;
+		if (accept.length == 1) return indexOf(accept.byteAt(0));
+
+		// Build a bitset of the accepted bytes, so each byte in this string only needs a single check.
+		final byte[] acceptContents = accept.contents();
+		final long[] accepted = new long[4];
+		for (int j = accept.offset, searchLimit = accept.offset + accept.length; j < searchLimit; ++j) {
+			int c = acceptContents[j] & 0xFF;
+			accepted[c >>> 6] |= 1L << c;
+		}
+
+		final byte[] contents = contents();
+		for (int i = offset, limit = offset + length; i < limit; ++i) {
+			int c = contents[i] & 0xFF;
+			if ((accepted[c >>> 6] & (1L << c)) != 0) return i - offset;
 		}
 		return -1;
 	}
@@ -372,12 +638,8 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	 * @return index of first match found, or -1 if not found.
 	 */
 	public int indexOf(byte b) {
-		for (int i = 0, j = offset; i < length; ++i) {
-			if (contents[j++] == b) {
-				return i;
-			}
-		}
-		return -1;
+		int index = indexOf(contents(), offset, offset + length, b);
+		return index < 0 ? -1 : index - offset;
 	}
 
 	/**
@@ -389,9 +651,17 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	 */
 	public int indexOf(LuaString search, int start) {
 		final int searchLen = search.length();
+		if (searchLen == 0) return start <= length ? start : -1;
+
 		final int limit = offset + length - searchLen;
+		final byte[] contents = contents(), searchContents = search.contents();
+		final byte first = searchContents[search.offset];
 		for (int i = offset + start; i <= limit; ++i) {
-			if (equals(contents, i, search.contents, search.offset, searchLen)) {
+			// Skip to the next occurrence of the first byte, and then compare the rest of the string.
+			i = indexOf(contents, i, limit + 1, first);
+			if (i < 0) return -1;
+
+			if (equals(contents, i + 1, searchContents, search.offset + 1, searchLen - 1)) {
 				return i - offset;
 			}
 		}
@@ -405,11 +675,52 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	 * @return index of last match found, or -1 if not found.
 	 */
 	public int lastIndexOf(byte c) {
-		for (int i = offset + length - 1; i >= offset; i--) {
-			if (contents[i] == c) return i;
+		final byte[] contents = contents();
+		final long pattern = (c & 0xFFL) * SWAR_ONES;
+		int i = offset + length;
+		for (; i - 8 >= offset; i -= 8) {
+			long found = zeroBytes((long) LONG_VIEW.get(contents, i - 8) ^ pattern);
+			if (found != 0) return i - 8 + ((63 - Long.numberOfLeadingZeros(found)) >>> 3) - offset;
+		}
+		for (i--; i >= offset; i--) {
+			if (contents[i] == c) return i - offset;
+		}
+		return -1;
+	}
+
+	/**
+	 * Find the first occurrence of a byte in a range of an array.
+	 * <p>
+	 * This reads eight bytes at a time, and uses {@link #zeroBytes(long)} to check whether any of them match.
+	 *
+	 * @param contents The array to search.
+	 * @param from     The first index to search, inclusive.
+	 * @param to       The last index to search, exclusive.
+	 * @param b        The byte to look for.
+	 * @return The index into the array of the first match, or -1 if not found.
+	 */
+	private static int indexOf(byte[] contents, int from, int to, byte b) {
+		final long pattern = (b & 0xFFL) * SWAR_ONES;
+		int i = from;
+		for (; i + 8 <= to; i += 8) {
+			long found = zeroBytes((long) LONG_VIEW.get(contents, i) ^ pattern);
+			if (found != 0) return i + (Long.numberOfTrailingZeros(found) >>> 3);
+		}
+		for (; i < to; i++) {
+			if (contents[i] == b) return i;
 		}
 		return -1;
 	}
+
+	/**
+	 * Find the zero bytes within a word.
+	 *
+	 * @param word The word to check.
+	 * @return A word with the top bit of every zero byte set, and all other bits clear.
+	 */
+	private static long zeroBytes(long word) {
+		return ~(((word & SWAR_LOWS) + SWAR_LOWS) | word | SWAR_LOWS);
+	}
 	// endregion
 
 	// region Byte export
@@ -421,7 +732,7 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	 * @throws IOException If the underlying writer fails.
 	 */
 	public void write(DataOutput output) throws IOException {
-		output.write(contents, offset, length);
+		output.write(contents(), offset, length);
 	}
 
 	/**
@@ -431,7 +742,7 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	 * @throws IOException If the underlying writer fails.
 	 */
 	public void write(OutputStream output) throws IOException {
-		output.write(contents, offset, length);
+		output.write(contents(), offset, length);
 	}
 
 	/**
@@ -440,7 +751,7 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	 * @return {@link InputStream} whose data matches the bytes in this {@link LuaString}
 	 */
 	public InputStream toInputStream() {
-		return new ByteArrayInputStream(contents, offset, length);
+		return new ByteArrayInputStream(contents(), offset, length);
 	}
 
 	/**
@@ -449,7 +760,7 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	 * @return A view over the underlying string.
 	 */
 	public ByteBuffer toBuffer() {
-		return ByteBuffer.wrap(contents, offset, length).asReadOnlyBuffer();
+		return ByteBuffer.wrap(contents(), offset, length).asReadOnlyBuffer();
 	}
 
 	/**
@@ -463,7 +774,7 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	 */
 	public int copyTo(int strOffset, byte[] bytes, int arrayOffset, int len) {
 		if (strOffset < 0 || len > length - strOffset) throw new IndexOutOfBoundsException();
-		System.arraycopy(contents, offset + strOffset, bytes, arrayOffset, len);
+		System.arraycopy(contents(), offset + strOffset, bytes, arrayOffset, len);
 		return arrayOffset + len;
 	}
 
@@ -475,8 +786,15 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	 * @return The next byte free
 	 */
 	public int copyTo(byte[] dest, int destOffset) {
-		// We could avoid unpacking the bytes here, but it's not clear it's worth it.
-		System.arraycopy(contents, offset, dest, destOffset, length);
+		// Copy directly from a rope's parts, rather than flattening it. When repeatedly appending to a string, the
+		// rope is an intermediate value which is never used again.
+		LuaString[] parts = this.parts;
+		if (parts != null) {
+			copyParts(parts, dest, destOffset, destOffset + length);
+			return destOffset + length;
+		}
+
+		System.arraycopy(contents(), offset, dest, destOffset, length);
 		return destOffset + length;
 	}
 	// endregion
@@ -609,7 +927,7 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 
 	private double scanNumber(int base) {
 		if (base < 2 || base > 36) return Double.NaN;
-		return NumberParser.parse(contents, offset, length, base);
+		return NumberParser.parse(contents(), offset, length, base);
 	}
 
 	// endregion
@@ -28,6 +28,7 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 import org.figuramc.figura_cobalt.LuaUncatchableError;
 import org.figuramc.memory_tracker.AllocationTracker;
 
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
 import java.util.Map;
@@ -79,6 +80,46 @@ public final class LuaTable extends LuaValue {
 
 	private Object[] array = EMPTY_ARRAY;
 
+	/**
+	 * The array part of this table when it only contains numbers, or {@code null} if {@link #array} is used instead.
+	 * Nil values are stored as {@link #NIL_NUMBER}.
+	 * <p>
+	 * Tables switch to this representation when the array part grows and all its values are numbers, and switch back
+	 * to {@link #array} (permanently) when a non-number is stored. When set, {@link #array} is empty.
+	 */
+	private double @Nullable [] numbers;
+
+	/**
+	 * Whether the array part may use the {@linkplain #numbers numeric representation}.
+	 */
+	private boolean numericArray = true;
+
+	/**
+	 * A NaN with a non-standard payload, used to mark nil values in {@link #numbers}. NaNs stored in the table are
+	 * normalised to {@link Double#NaN}, so this never conflicts with a real value.
+	 */
+	private static final long NIL_BITS = 0x7ff8_0000_0000_0001L;
+	private static final double NIL_NUMBER = Double.longBitsToDouble(NIL_BITS);
+
+	/**
+	 * A hint for the result of {@link #length()}: an index into the array part where {@code array[border - 1]} is
+	 * non-nil (or {@code border == 0}) and {@code array[border]} is nil (or {@code border == array.length}).
+	 * <p>
+	 * This is updated when setting values in the array part, and so is normally correct when appending to or removing
+	 * from the end of a list. However, it is only a hint, and so must be checked before being used.
+	 */
+	private int border;
+
+	/**
+	 * The {@linkplain Shape shape} of the hash part, or {@code null} if this table uses a normal hash part.
+	 * <p>
+	 * When set, the hash part only contains string keys, and {@link #values} holds the value for each of the shape's
+	 * keys ({@link Constants#NIL} if it has been removed). {@link #keys} and {@link #next} are empty. Tables switch to a
+	 * normal hash part (permanently) when a key which is not a string is added to the hash part, when the shape would
+	 * have too many keys, or when the table becomes weak.
+	 */
+	private @Nullable Shape shape = Shape.ROOT;
+
 	private Object[] keys = EMPTY_ARRAY;
 	private Object[] values = EMPTY_ARRAY;
 	private int[] next = EMPTY_NEXT;
@@ -88,24 +129,42 @@ public final class LuaTable extends LuaValue {
 	private boolean weakKeys;
 	private boolean weakValues;
 
+	/**
+	 * When this table is weak, the queue its weak references are registered with. This allows us to only look for
+	 * collected entries when the garbage collector has actually cleared one.
+	 *
+	 * @see #sweep()
+	 */
+	private @Nullable ReferenceQueue<Object> collected;
+
 	private int metatableFlags;
 	private LuaTable metatable;
 
+	/**
+	 * The instruction which created this table, which is told about this table's size as it grows.
+	 */
+	private final @Nullable TableSite site;
+
 	// Allocation tracker for this table.
 	// Resizings can occur at nearly any time, so the tracker is within.
 	private final @Nullable AllocationTracker<LuaUncatchableError> allocTracker;
 
 	private static final int SIZE_ESTIMATE =
 			AllocationTracker.OBJECT_SIZE
-			+ AllocationTracker.REFERENCE_SIZE * 8
-			+ AllocationTracker.INT_SIZE * 2
-			+ AllocationTracker.BOOLEAN_SIZE * 2;
+			+ AllocationTracker.REFERENCE_SIZE * 12
+			+ AllocationTracker.INT_SIZE * 3
+			+ AllocationTracker.BOOLEAN_SIZE * 3;
 
 	/**
 	 * Construct empty table
 	 */
 	public LuaTable(@Nullable AllocationTracker<LuaUncatchableError> allocTracker) throws LuaUncatchableError {
+		this((TableSite) null, allocTracker);
+	}
+
+	private LuaTable(@Nullable TableSite site, @Nullable AllocationTracker<LuaUncatchableError> allocTracker) throws LuaUncatchableError {
 		super(TTABLE);
+		this.site = site;
 		this.allocTracker = allocTracker;
 		if (allocTracker != null)
 			allocTracker.track(this, SIZE_ESTIMATE);
@@ -122,6 +181,19 @@ public final class LuaTable extends LuaValue {
 		resize(arraySize, hashSize, false);
 	}
 
+	/**
+	 * Construct a table from an allocation site.
+	 *
+	 * @param site      The site this table was created at.
+	 * @param arraySize capacity of array part
+	 * @param hashSize  capacity of hash part
+	 * @see TableSite#newTable(int, int, AllocationTracker)
+	 */
+	LuaTable(TableSite site, int arraySize, int hashSize, @Nullable AllocationTracker<LuaUncatchableError> allocTracker) throws LuaUncatchableError {
+		this(site, allocTracker);
+		resize(arraySize, hashSize, false);
+	}
+
 	@Override
 	public LuaTable checkTable(LuaState state) {
 		return this;
@@ -140,7 +212,7 @@ public final class LuaTable extends LuaValue {
 	 * @param nArray the number of array slots to preallocate in the table.
 	 */
 	public void presize(int nArray) throws LuaUncatchableError {
-		if (nArray > array.length) {
+		if (nArray > arrayLength()) {
 			resize(nArray, keys.length, false);
 		}
 	}
@@ -167,6 +239,7 @@ public final class LuaTable extends LuaValue {
 		if (newWeakKeys != weakKeys || newWeakValues != weakValues) {
 			weakKeys = newWeakKeys;
 			weakValues = newWeakValues;
+			collected = newWeakKeys || newWeakValues ? new ReferenceQueue<>() : null;
 			rehash(null, true);
 		}
 	}
@@ -178,8 +251,12 @@ public final class LuaTable extends LuaValue {
 	 * @return {@link LuaValue} for that key, or {@link Constants#NIL} if not found
 	 */
 	public LuaValue rawget(String key) {
-		// String is discarded immediately, it's rawget
-		return rawget(LuaString.valueOfNoAlloc(key));
+		try {
+			// String is discarded immediately (or already cached), so don't track it.
+			return rawget(LuaString.valueOfCached(null, key));
+		} catch (LuaUncatchableError impossible) {
+			throw new IllegalStateException("Should never happen. Contact Figura devs!", impossible);
+		}
 	}
 
 	/**
@@ -189,7 +266,7 @@ public final class LuaTable extends LuaValue {
 	 * @param value the value to use, can be {@link Constants#NIL}, must not be null
 	 */
 	public void rawset(String key, LuaValue value) throws LuaUncatchableError {
-		rawsetImpl(LuaString.valueOf(allocTracker, key), value);
+		rawsetImpl(LuaString.valueOfCached(allocTracker, key), value);
 	}
 
 	/**
@@ -209,30 +286,38 @@ public final class LuaTable extends LuaValue {
 	}
 
 	public int length() {
-		int a = array.length;
+		int a = arrayLength();
+
+		// Use the cached border if it is still valid.
+		int border = this.border;
+		if (border < a && isArrayNil(border) && (border == 0 || !isArrayNil(border - 1))) {
+			return border;
+		}
+
 		/*
 		 * Array cannot contain nil value, except if that array is statically allocated
 		 * So if the last element is nil it means we need to binary search the array to find
 		 * the first element non nil followed with a nil value
 		 */
-		if (a > 0 && rawget(a).isNil()) {
+		if (a > 0 && isArrayNil(a - 1)) {
 			int n = a + 1, m = 0;
 			while (n - m > 1) {
 				int k = (m + n) / 2;
 
-				if (rawget(k).isNil()) {
+				if (isArrayNil(k - 1)) {
 					n = k;
 				} else {
 					m = k;
 				}
 			}
-			return m;
+			return this.border = m;
 		} else if (keys.length == 0) {
 			// When no nodes are present and the last item is not nil,
 			// the size of the table is the exact same size its capacity,
 			// so we can directly return the array.length
-			return a;
+			return this.border = a;
 		} else {
+			this.border = a;
 			long i = a;
 			long j = i + 1;
 			while (!rawget((int) j).isNil()) {
@@ -268,8 +353,8 @@ public final class LuaTable extends LuaValue {
 	 */
 	public int size() {
 		int n = 0;
-		for (var k : array) if (!strengthen(k).isNil()) n++;
-		for (int i = 0; i < keys.length; i++) {
+		for (int i = 0, a = arrayLength(); i < a; i++) if (!isArrayNil(i)) n++;
+		for (int i = 0, nodes = nodeCount(); i < nodes; i++) {
 			if (!key(i).isNil() && !value(i).isNil()) n++;
 		}
 		return n;
@@ -300,24 +385,75 @@ public final class LuaTable extends LuaValue {
 	 * @see Varargs#first()
 	 * @see Varargs#arg(int)
 	 * @see #isNil()
+	 * @see #nextSlot(int)
 	 */
 	public Varargs next(LuaValue key) throws LuaError, LuaUncatchableError {
 		int i = findIndex(key);
 		if (i < 0) throw new LuaError("invalid key to 'next'", allocTracker);
 
-		for (; i < array.length; i++) {
-			LuaValue value = strengthen(array[i]);
-			if (!value.isNil()) return varargsOf(LuaInteger.valueOf(i + 1), value);
+		int slot = nextSlot(i - 1);
+		return slot < 0 ? NIL : varargsOf(slotKey(slot), slotValue(slot));
+	}
+
+	/**
+	 * Find the next occupied slot in this table. This allows iterating over a table without allocating intermediate
+	 * {@link Varargs}:
+	 * <pre> {@code
+	 * for (int slot = table.nextSlot(-1); slot >= 0; slot = table.nextSlot(slot)) {
+	 *    LuaValue k = table.slotKey(slot);
+	 *    LuaValue v = table.slotValue(slot);
+	 *    process(k, v);
+	 * }}</pre>
+	 * <p>
+	 * Slots cover both the array and hash part of the table, and are only valid until a new key is added to the
+	 * table. As with {@link #next(LuaValue)}, existing keys may be modified or cleared during iteration.
+	 *
+	 * @param slot The previous slot, or {@code -1} to start from the beginning of the table.
+	 * @return The next slot with a non-nil value, or {@code -1} if there are no more entries.
+	 */
+	public int nextSlot(int slot) {
+		int a = arrayLength();
+		for (int i = slot + 1; i < a; i++) {
+			if (!isArrayNil(i)) return i;
 		}
 
-		i -= array.length;
-		for (; i < keys.length; i++) {
-			LuaValue thisKey = key(i);
-			LuaValue thisValue = value(i);
-			if (!thisKey.isNil() && !thisValue.isNil()) return varargsOf(thisKey, thisValue);
+		for (int i = Math.max(slot + 1 - a, 0), nodes = nodeCount(); i < nodes; i++) {
+			if (!key(i).isNil() && !value(i).isNil()) return i + a;
 		}
 
-		return NIL;
+		return -1;
+	}
+
+	/**
+	 * Find the slot containing a key, allowing iteration to resume from it with {@link #nextSlot(int)}.
+	 *
+	 * @param key The key to find.
+	 * @return The slot containing this key, or {@code -1} if the key is nil or not present in the table.
+	 */
+	public int slotOf(LuaValue key) {
+		return findIndex(key) - 1;
+	}
+
+	/**
+	 * Get the key in a slot returned by {@link #nextSlot(int)}.
+	 *
+	 * @param slot The slot.
+	 * @return The key in this slot.
+	 */
+	public LuaValue slotKey(int slot) {
+		int a = arrayLength();
+		return slot < a ? LuaInteger.valueOf(slot + 1) : key(slot - a);
+	}
+
+	/**
+	 * Get the value in a slot returned by {@link #nextSlot(int)}.
+	 *
+	 * @param slot The slot.
+	 * @return The value in this slot.
+	 */
+	public LuaValue slotValue(int slot) {
+		int a = arrayLength();
+		return slot < a ? getArray(slot) : value(slot - a);
 	}
 
 	/**
@@ -332,19 +468,11 @@ public final class LuaTable extends LuaValue {
 
 		// Its in the array part so just return that
 		int arrayIndex = arraySlot(key);
-		if (arrayIndex > 0 && arrayIndex <= array.length) return arrayIndex;
-		if (keys.length == 0) return -1;
+		if (arrayIndex > 0 && arrayIndex <= arrayLength()) return arrayIndex;
 
-		// Must be in the main part so try to find it in the chain.
-		int idx = hashSlot(key);
-		while (true) {
-			if (key(idx).equals(key)) {
-				return idx + array.length + 1;
-			}
-
-			idx = next[idx];
-			if (idx < 0) return -1;
-		}
+		// Must be in the main part so try to find it there.
+		int node = getNode(key);
+		return node < 0 ? -1 : node + arrayLength() + 1;
 	}
 
 	private static int hashpow2(int hashCode, int mask) {
@@ -395,6 +523,7 @@ public final class LuaTable extends LuaValue {
 	}
 
 	private void dropWeakArrayValues() {
+		// Numbers are never weak, so only the boxed array part needs to be checked.
 		for (int i = 0; i < array.length; ++i) {
 			Object x = array[i];
 			if (x != NIL && strengthen(x).isNil()) array[i] = NIL;
@@ -406,12 +535,141 @@ public final class LuaTable extends LuaValue {
 		return 32 - Integer.numberOfLeadingZeros(x - 1);
 	}
 
+	//region Array part
+
+	/**
+	 * Get the size of the array part.
+	 *
+	 * @return The size of the array part.
+	 */
+	private int arrayLength() {
+		double[] numbers = this.numbers;
+		return numbers != null ? numbers.length : array.length;
+	}
+
+	/**
+	 * Check if a slot in the array part is nil, without boxing numbers.
+	 *
+	 * @param index The zero-based index into the array part.
+	 * @return Whether this slot is nil.
+	 */
+	private boolean isArrayNil(int index) {
+		double[] numbers = this.numbers;
+		return numbers != null ? Double.doubleToRawLongBits(numbers[index]) == NIL_BITS : strengthen(array[index]).isNil();
+	}
+
+	/**
+	 * Get a value from the array part.
+	 *
+	 * @param index The zero-based index into the array part.
+	 * @return The value in this slot.
+	 */
+	private LuaValue getArray(int index) {
+		double[] numbers = this.numbers;
+		return numbers != null ? boxNumber(numbers[index]) : strengthen(array[index]);
+	}
+
+	/**
+	 * Set a value in the array part, switching to the boxed representation if this value is not a number.
+	 *
+	 * @param index The zero-based index into the array part.
+	 * @param value The value to store.
+	 */
+	private void setArray(int index, LuaValue value) throws LuaUncatchableError {
+		double[] numbers = this.numbers;
+		if (numbers != null) {
+			if (value == NIL || value instanceof LuaNumber) {
+				numbers[index] = unboxNumber(value);
+				return;
+			}
+
+			boxArray();
+		}
+
+		array[index] = weakValues ? weaken(value) : value;
+	}
+
+	private static LuaValue boxNumber(double number) {
+		return Double.doubleToRawLongBits(number) == NIL_BITS ? NIL : LuaDouble.valueOf(number);
+	}
+
+	private static double unboxNumber(LuaValue value) {
+		if (value == NIL) return NIL_NUMBER;
+
+		double number = value.toDouble();
+		return Double.isNaN(number) ? Double.NaN : number;
+	}
+
+	/**
+	 * Convert the array part from the numeric representation to an array of boxed values. The table will never use the
+	 * numeric representation again.
+	 */
+	private void boxArray() throws LuaUncatchableError {
+		double[] numbers = this.numbers;
+		numericArray = false;
+		if (site != null) site.numeric = false;
+		if (numbers == null) return;
+
+		Object[] array = new Object[numbers.length];
+		if (allocTracker != null) allocTracker.track(array);
+		for (int i = 0; i < numbers.length; i++) array[i] = boxNumber(numbers[i]);
+
+		this.array = array;
+		this.numbers = null;
+	}
+
+	/**
+	 * Resize the array part. If the array part is growing and only contains numbers, this switches to the numeric
+	 * representation.
+	 *
+	 * @param n          The new size of the array part.
+	 * @param metaChange Whether the table's weak mode has changed.
+	 */
+	private void setArraySize(int n, boolean metaChange) throws LuaUncatchableError {
+		double[] numbers = this.numbers;
+		Object[] array = this.array;
+		if (numbers != null) {
+			double[] newNumbers = Arrays.copyOf(numbers, n);
+			if (allocTracker != null) allocTracker.track(newNumbers);
+			if (n > numbers.length) Arrays.fill(newNumbers, numbers.length, n, NIL_NUMBER);
+			this.numbers = newNumbers;
+			return;
+		}
+
+		// Tables start with a boxed array part, so small or short-lived tables aren't converted. We only switch once the
+		// array part has been filled and needs to grow, or if previous tables from the same site were numeric.
+		if (numericArray && n > array.length && (array.length > 0 || site != null && site.numeric)) {
+			if (onlyNumbers(array)) {
+				double[] newNumbers = new double[n];
+				if (allocTracker != null) allocTracker.track(newNumbers);
+				for (int i = 0; i < array.length; i++) newNumbers[i] = unboxNumber((LuaValue) array[i]);
+				Arrays.fill(newNumbers, array.length, n, NIL_NUMBER);
+
+				this.numbers = newNumbers;
+				this.array = EMPTY_ARRAY;
+				return;
+			}
+
+			numericArray = false;
+		}
+
+		this.array = setArrayVector(array, n, metaChange);
+	}
+
+	private static boolean onlyNumbers(Object[] array) {
+		for (Object value : array) {
+			if (value != NIL && !(value instanceof LuaNumber)) return false;
+		}
+		return true;
+	}
+	//endregion
+
 	//region Resizing
 
 	/**
 	 * Resize the table
 	 */
-	private static Object[] setArrayVector(@Nullable AllocationTracker<LuaUncatchableError> allocTracker, Object[] oldArray, int n, boolean metaChange, boolean weakValues) throws LuaUncatchableError {
+	private Object[] setArrayVector(Object[] oldArray, int n, boolean metaChange) throws LuaUncatchableError {
 		Object[] newArray = new Object[n];
 		if (allocTracker != null) allocTracker.track(newArray);
 		int len = Math.min(n, oldArray.length);
@@ -454,14 +712,13 @@ public final class LuaTable extends LuaValue {
 		for (lg = 0, ttlg = 1; lg <= 31; lg++, ttlg *= 2) {
 			int lc = 0;
 			int lim = ttlg;
-			if (lim > array.length) {
-				lim = array.length; // Adjust upper limit
+			if (lim > arrayLength()) {
+				lim = arrayLength(); // Adjust upper limit
 				if (i > lim) break;
 			}
 
 			for (; i <= lim; i++) {
-				LuaValue value = strengthen(array[i - 1]);
-				if (!value.isNil()) lc++;
+				if (!isArrayNil(i - 1)) lc++;
 			}
 			nums[lg] += lc;
 			ause += lc;
@@ -497,29 +754,37 @@ public final class LuaTable extends LuaValue {
 	}
 
 	private void resize(int newArraySize, int newHashSize, boolean modeChange) throws LuaUncatchableError {
-		int oldArraySize = array.length;
+		assert shape == null || !modeChange;
+		if (newHashSize > Shape.MAX_KEYS) dropShape();
+
+		int oldArraySize = arrayLength();
 		int oldHashSize = keys.length;
 
 		// Array part must grow
-		if (newArraySize > oldArraySize) {
-			array = setArrayVector(allocTracker, array, newArraySize, modeChange, weakValues);
-		}
+		if (newArraySize > oldArraySize) setArraySize(newArraySize, modeChange);
 
 		Object[] oldKeys = keys;
 		Object[] oldValues = values;
-		setNodeVector(newHashSize);
+		if (shape == null) {
+			setNodeVector(newHashSize);
+		} else if (newHashSize > values.length) {
+			// Shaped tables have no hash part, so just reserve space for the values.
+			growShapeValues(newHashSize);
+		}
 
 		if (newArraySize < oldArraySize) {
 			Object[] oldArray = array;
-			array = setArrayVector(allocTracker, oldArray, newArraySize, modeChange, weakValues);
+			double[] oldNumbers = numbers;
+			setArraySize(newArraySize, modeChange);
+			if (border > newArraySize) border = newArraySize;
 
 			// Copy values out of array part into the hash
 			for (int i = newArraySize; i < oldArraySize; i++) {
-				LuaValue value = strengthen(oldArray[i]);
+				LuaValue value = oldNumbers != null ? boxNumber(oldNumbers[i]) : strengthen(oldArray[i]);
 				if (!value.isNil()) rawset(i + 1, value);
 			}
 
-		} else if (newArraySize == oldArraySize && modeChange) {
+		} else if (newArraySize == oldArraySize && modeChange && numbers == null) {
 			Object[] values = array;
 			for (int i = 0; i < oldArraySize; i++) {
 				LuaValue value = strengthen(values[i]);
@@ -533,10 +798,15 @@ public final class LuaTable extends LuaValue {
 			LuaValue value = value(oldValues, i, true);
 			if (!key.isNil() && !value.isNil()) rawsetImpl(key, value);
 		}
+
+		if (site != null) site.onResize(arrayLength(), nodeCapacity(), numbers != null);
 	}
 
 	private void rehash(LuaValue extraKey, boolean mode) throws LuaUncatchableError {
+		if (ExecutionStatistics.ENABLED) ExecutionStatistics.onTableRehash();
 		if (weakValues) dropWeakArrayValues();
+		// Weak tables never use shapes.
+		if (mode) dropShape();
 
 		int[] nums = new int[32]; // Counts for various functions
 		int arraySize = 0; // Optimal size for array part
@@ -586,10 +856,89 @@ public final class LuaTable extends LuaValue {
 			arrayCount = numArray;
 		}
 
+		if (shape != null && totalCount != arrayCount) {
+			// Some keys need to go in the hash part, so convert it to a normal hash table first.
+			dropShape();
+			rehash(extraKey, false);
+			return;
+		}
+
 		resize(arraySize, totalCount - arrayCount, mode);
 	}
 	//endregion
 
+	//region Shapes
+
+	/**
+	 * Get the number of nodes in the hash part. When this table has a {@linkplain #shape shape}, this is the number of
+	 * keys in the shape.
+	 *
+	 * @return The number of nodes.
+	 */
+	private int nodeCount() {
+		Shape shape = this.shape;
+		return shape != null ? shape.size() : keys.length;
+	}
+
+	/**
+	 * Get the number of keys the hash part can hold before it needs to be resized.
+	 *
+	 * @return The capacity of the hash part.
+	 */
+	private int nodeCapacity() {
+		return shape != null ? values.length : keys.length;
+	}
+
+	/**
+	 * Add a key to this table's shape.
+	 *
+	 * @param shape The current shape.
+	 * @param key   The key to add.
+	 * @return The slot for this key.
+	 */
+	private int addShapeKey(Shape shape, LuaString key) throws LuaUncatchableError {
+		int slot = shape.size();
+		if (slot >= values.length) {
+			growShapeValues(Math.min(Math.max(slot * 2, 4), Shape.MAX_KEYS));
+			if (site != null) site.onResize(arrayLength(), values.length, numbers != null);
+		}
+
+		// Tables start with the shared ROOT shape, and move to their tracker's own tree when the first key is added.
+		if (slot == 0) shape = Shape.root(allocTracker);
+		this.shape = shape.withKey(key, allocTracker);
+		return slot;
+	}
+
+	private void growShapeValues(int size) throws LuaUncatchableError {
+		Object[] oldValues = values;
+		Object[] newValues = Arrays.copyOf(oldValues, size);
+		if (allocTracker != null) allocTracker.track(newValues);
+		Arrays.fill(newValues, oldValues.length, size, NIL);
+		values = newValues;
+	}
+
+	/**
+	 * Convert this table from using a {@linkplain #shape shape} to a normal hash part. This does nothing if the table
+	 * has already been converted.
+	 */
+	private void dropShape() throws LuaUncatchableError {
+		Shape shape = this.shape;
+		if (shape == null) return;
+
+		Object[] oldValues = values;
+		int count = 0;
+		for (int i = 0; i < shape.size(); i++) {
+			if (oldValues[i] != NIL) count++;
+		}
+
+		this.shape = null;
+		setNodeVector(count);
+		for (int i = 0; i < shape.size(); i++) {
+			if (oldValues[i] != NIL) rawsetImpl(shape.key(i), (LuaValue) oldValues[i]);
+		}
+	}
+	//endregion
+
 	//region Getting/setting
 
 	/**
@@ -615,7 +964,8 @@ public final class LuaTable extends LuaValue {
 	 * @return The entry's key.
 	 */
 	private LuaValue key(int slot) {
-		return key(keys, values, slot, weakKeys);
+		Shape shape = this.shape;
+		return shape != null ? shape.key(slot) : key(keys, values, slot, weakKeys);
 	}
 
 	private static LuaValue key(Object[] keys, Object[] values, int slot, boolean weak) {
@@ -671,6 +1021,26 @@ public final class LuaTable extends LuaValue {
 	private int newKey(LuaValue key) throws LuaUncatchableError {
 		if (key.isNil()) throw new IllegalArgumentException("table index is nil");
 
+		Shape shape = this.shape;
+		if (shape != null) {
+			if (key instanceof LuaString string && shape.size() < Shape.MAX_KEYS) return addShapeKey(shape, string);
+
+			// Integer keys may fit in the array part, in which case we can keep the shape. Otherwise rehash will
+			// convert the table to a normal hash table.
+			if (key instanceof LuaInteger) {
+				rehash(key, false);
+				return -1;
+			}
+
+			dropShape();
+		}
+
+		// Clear out any collected entries first, rehashing if that has freed up most of the table.
+		if (sweep()) {
+			rehash(key, false);
+			return -1;
+		}
+
 		// Rehash and let the rawgetter handle it
 		if (keys.length == 0) {
 			rehash(key, false);
@@ -747,6 +1117,8 @@ public final class LuaTable extends LuaValue {
 	}
 
 	private int getNode(LuaValue search) {
+		Shape shape = this.shape;
+		if (shape != null) return search instanceof LuaString string ? shape.slotOf(string) : -1;
 		if (keys.length == 0 || search == NIL) return -1;
 
 		int node = hashSlot(search);
@@ -762,14 +1134,19 @@ public final class LuaTable extends LuaValue {
 	}
 
 	public LuaValue rawget(int search) {
-		if (search > 0 && search <= array.length) {
-			return strengthen(array[search - 1]);
-		} else if (keys.length == 0) {
-			return NIL;
-		} else {
-			int node = getNode(search);
-			return node == -1 ? NIL : value(node);
+		if (search > 0) {
+			double[] numbers = this.numbers;
+			if (numbers != null) {
+				if (search <= numbers.length) return boxNumber(numbers[search - 1]);
+			} else if (search <= array.length) {
+				return strengthen(array[search - 1]);
+			}
 		}
+
+		if (keys.length == 0) return NIL;
+
+		int node = getNode(search);
+		return node == -1 ? NIL : value(node);
 	}
 
 	public LuaValue rawget(LuaValue search) {
@@ -779,6 +1156,31 @@ public final class LuaTable extends LuaValue {
 		return node == -1 ? NIL : value(node);
 	}
 
+	/**
+	 * Get a string-keyed value, using and updating a cached node index.
+	 * <p>
+	 * As keys are unique within a table, the cache is valid if the cached node contains this key, and so no other
+	 * checks are needed. This allows one cache to be shared between different tables. Tables with the same
+	 * {@linkplain Shape shape} store each key in the same node, and so will always hit the cache.
+	 *
+	 * @param search The key to look up.
+	 * @param cache  The array of cached node indexes.
+	 * @param index  The index into {@code cache} for this lookup.
+	 * @return The value for this key, or {@link Constants#NIL} if not found.
+	 * @see Prototype#indexCache
+	 */
+	LuaValue rawget(LuaString search, int[] cache, int index) {
+		int node = cache[index];
+		Shape shape = this.shape;
+		if (shape != null ? !shape.hasKey(node, search) : node >= keys.length || !search.equals(keys[node])) {
+			node = getNode(search);
+			if (node == -1) return NIL;
+			cache[index] = node;
+		}
+
+		return value(node);
+	}
+
 	public LuaValue rawget(CachedMetamethod search) {
 		int flag = 1 << search.ordinal();
 		if ((metatableFlags & flag) != 0) return NIL;
@@ -816,10 +1218,11 @@ public final class LuaTable extends LuaValue {
 	}
 
 	private boolean trySet(int key, LuaValue value, LuaValue keyValue) throws LuaUncatchableError {
-		if (key > 0 && key <= array.length) {
+		if (key > 0 && key <= arrayLength()) {
 			// If value is absent and we've got a __newindex method, don't insert.
-			if (strengthen(array[key - 1]) == NIL && hasNewIndex()) return false;
-			array[key - 1] = weakValues ? weaken(value) : value;
+			if (isArrayNil(key - 1) && hasNewIndex()) return false;
+			setArray(key - 1, value);
+			updateBorder(key, value);
 			return true;
 		}
 
@@ -868,8 +1271,9 @@ public final class LuaTable extends LuaValue {
 
 	private void rawset(int key, LuaValue value, LuaValue valueOf) throws LuaUncatchableError {
 		do {
-			if (key > 0 && key <= array.length) {
-				array[key - 1] = weakValues ? weaken(value) : value;
+			if (key > 0 && key <= arrayLength()) {
+				setArray(key - 1, value);
+				updateBorder(key, value);
 				return;
 			}
 
@@ -893,6 +1297,20 @@ public final class LuaTable extends LuaValue {
 		rawsetImpl(key, value);
 	}
 
+	/**
+	 * Update the {@linkplain #border border hint} after setting a value in the array part.
+	 *
+	 * @param key   The key which was set.
+	 * @param value The value it was set to.
+	 */
+	private void updateBorder(int key, LuaValue value) {
+		if (value == NIL) {
+			if (key <= border) border = key - 1;
+		} else if (key == border + 1) {
+			border = key;
+		}
+	}
+
 	public void rawsetImpl(LuaValue key, LuaValue value) throws LuaUncatchableError {
 		if (key instanceof LuaInteger keyI) {
 			rawset(keyI.intValue(), value, key);
@@ -914,20 +1332,62 @@ public final class LuaTable extends LuaValue {
 
 	//region Weak references
 
+	/**
+	 * A key which has been collected. This replaces the original {@link WeakReference} once the key has been
+	 * {@linkplain #sweep() swept}, so that the reference itself can be freed.
+	 */
+	private static final WeakReference<LuaValue> DEAD_KEY = new WeakReference<>(null);
+
 	/**
 	 * Self-sent message to convert a value to its weak counterpart
 	 *
 	 * @param value value to convert
 	 * @return {@link LuaValue} that is a strong or weak reference, depending on type of {@code value}
 	 */
-	private static Object weaken(LuaValue value) {
+	private Object weaken(LuaValue value) {
 		return switch (value.type()) {
-			case TFUNCTION, TTHREAD, TTABLE -> new WeakReference<>(value);
-			case TUSERDATA -> new WeakUserdata((LuaUserdata) value);
+			case TFUNCTION, TTHREAD, TTABLE -> new WeakReference<>(value, collected);
+			case TUSERDATA -> new WeakUserdata((LuaUserdata) value, collected);
 			default -> value;
 		};
 	}
 
+	/**
+	 * Clear any entries whose key or value has been garbage collected.
+	 * <p>
+	 * This is called before adding a new key to the hash part, so that dead entries are removed in one batch, rather
+	 * than only when they happen to be looked at. Dead keys are replaced with {@link #DEAD_KEY}, as they may still be
+	 * part of a chain, and their values are cleared.
+	 *
+	 * @return Whether most of the hash part is now unused, and so the table should be rehashed.
+	 */
+	private boolean sweep() {
+		ReferenceQueue<Object> collected = this.collected;
+		if (collected == null || collected.poll() == null) return false;
+
+		// We scan the whole table anyway, so there's no need to look at the rest of the queue.
+		while (collected.poll() != null) {
+		}
+
+		if (weakValues) dropWeakArrayValues();
+
+		Object[] keys = this.keys;
+		int live = 0;
+		for (int i = 0; i < keys.length; i++) {
+			Object key = keys[i];
+			if (key == NIL) continue;
+
+			if (strengthen(key).isNil()) {
+				keys[i] = DEAD_KEY;
+				values[i] = NIL;
+			} else if (!value(i).isNil()) {
+				live++;
+			}
+		}
+
+		return live < keys.length / 4;
+	}
+
 	/**
 	 * Unwrap a LuaValue from a WeakReference and/or WeakUserdata.
 	 *
@@ -955,9 +1415,10 @@ public final class LuaTable extends LuaValue {
 		private final WeakReference<Object> ob;
 		private final LuaTable mt;
 
-		private WeakUserdata(LuaUserdata value) {
+		private WeakUserdata(LuaUserdata value, @Nullable ReferenceQueue<Object> queue) {
 			ref = new WeakReference<>(value);
-			ob = new WeakReference<>(value.instance);
+			// The instance is only collected once the userdata is, so only this needs to be registered.
+			ob = new WeakReference<>(value.instance, queue);
 			mt = value.metatable;
 		}
 
@@ -30,6 +30,7 @@ import org.figuramc.figura_cobalt.org.squiddev.cobalt.debug.DebugFrame;
 import org.figuramc.figura_cobalt.org.squiddev.cobalt.debug.DebugState;
 import org.figuramc.figura_cobalt.org.squiddev.cobalt.function.Dispatch;
 import org.figuramc.figura_cobalt.org.squiddev.cobalt.function.LuaFunction;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 import static org.figuramc.figura_cobalt.org.squiddev.cobalt.Constants.*;
 import static org.figuramc.figura_cobalt.org.squiddev.cobalt.Lua.*;
@@ -46,6 +47,10 @@ public final class OperationHelper {
 
 	//region Binary
 	public static LuaValue add(LuaState state, LuaValue left, LuaValue right) throws LuaError, LuaUncatchableError, UnwindThrowable {
+		if (left instanceof LuaInteger l && right instanceof LuaInteger r) {
+			return valueOf((long) l.intValue() + (long) r.intValue());
+		}
+
 		double dLeft, dRight;
 		if (checkNumber(left, dLeft = left.toDouble()) && checkNumber(right, dRight = right.toDouble())) {
 			return valueOf(dLeft + dRight);
@@ -55,6 +60,10 @@ public final class OperationHelper {
 	}
 
 	public static LuaValue sub(LuaState state, LuaValue left, LuaValue right) throws LuaError, LuaUncatchableError, UnwindThrowable {
+		if (left instanceof LuaInteger l && right instanceof LuaInteger r) {
+			return valueOf((long) l.intValue() - (long) r.intValue());
+		}
+
 		double dLeft, dRight;
 		if (checkNumber(left, dLeft = left.toDouble()) && checkNumber(right, dRight = right.toDouble())) {
 			return valueOf(dLeft - dRight);
@@ -64,6 +73,8 @@ public final class OperationHelper {
 	}
 
 	public static LuaValue mul(LuaState state, LuaValue left, LuaValue right) throws LuaError, LuaUncatchableError, UnwindThrowable {
+		// Integer arithmetic is exact (and so equivalent to the double version) as long as we stay within a long, which
+		// an int + int or int * int always will. valueOf(long) falls back to a double if the result overflows an int.
 		if (left instanceof LuaInteger l && right instanceof LuaInteger r) {
 			return valueOf((long) l.intValue() * (long) r.intValue());
 		}
@@ -86,6 +97,13 @@ public final class OperationHelper {
 	}
 
 	public static LuaValue mod(LuaState state, LuaValue left, LuaValue right) throws LuaError, LuaUncatchableError, UnwindThrowable {
+		if (left instanceof LuaInteger l && right instanceof LuaInteger r && r.intValue() != 0) {
+			int rInt = r.intValue();
+			int mod = l.intValue() % rInt;
+			// Lua's modulo takes the sign of the divisor, while Java's takes the sign of the dividend.
+			return valueOf(mod != 0 && (mod ^ rInt) < 0 ? mod + rInt : mod);
+		}
+
 		double dLeft, dRight;
 		if (checkNumber(left, dLeft = left.toDouble()) && checkNumber(right, dRight = right.toDouble())) {
 			return valueOf(mod(dLeft, dRight));
@@ -142,7 +160,9 @@ public final class OperationHelper {
 	 * @throws UnwindThrowable If calling the metatable function yielded.
 	 */
 	private static LuaValue arithMetatable(LuaState state, LuaValue tag, LuaValue left, LuaValue right) throws LuaError, LuaUncatchableError, UnwindThrowable {
-		return Dispatch.call(state, getMetatable(state, tag, left, right), left, right);
+		LuaValue h = getMetatable(state, tag, left, right);
+		if (ExecutionStatistics.ENABLED) state.statistics.onMetamethod();
+		return Dispatch.call(state, h, left, right);
 	}
 
 	/**
@@ -211,12 +231,15 @@ public final class OperationHelper {
 			}
 		}
 
+		if (ExecutionStatistics.ENABLED) state.statistics.onMetamethod();
 		return Dispatch.call(state, h, left, right);
 	}
 	//endregion
 
 	//region Compare
 	public static boolean lt(LuaState state, LuaValue left, LuaValue right) throws LuaError, LuaUncatchableError, UnwindThrowable {
+		if (left instanceof LuaInteger l && right instanceof LuaInteger r) return l.intValue() < r.intValue();
+
 		int tLeft = left.type();
 		if (tLeft != right.type()) {
 			throw ErrorFactory.compareError(state, left, right);
@@ -229,6 +252,7 @@ public final class OperationHelper {
 			default:
 				LuaValue h = left.metatag(state, Constants.LT);
 				if (!h.isNil() && h == right.metatag(state, Constants.LT)) {
+					if (ExecutionStatistics.ENABLED) state.statistics.onMetamethod();
 					return Dispatch.call(state, h, left, right).toBoolean();
 				} else {
 					throw ErrorFactory.compareError(state, left, right);
@@ -237,6 +261,8 @@ public final class OperationHelper {
 	}
 
 	public static boolean le(LuaState state, LuaValue left, LuaValue right) throws LuaError, LuaUncatchableError, UnwindThrowable {
+		if (left instanceof LuaInteger l && right instanceof LuaInteger r) return l.intValue() <= r.intValue();
+
 		int tLeft = left.type();
 		if (tLeft != right.type()) {
 			throw ErrorFactory.compareError(state, left, right);
@@ -251,6 +277,7 @@ public final class OperationHelper {
 				if (h.isNil()) {
 					h = left.metatag(state, Constants.LT);
 					if (!h.isNil() && h == right.metatag(state, Constants.LT)) {
+						if (ExecutionStatistics.ENABLED) state.statistics.onMetamethod();
 						DebugFrame frame = DebugState.get(state).getStackUnsafe();
 
 						frame.flags |= FLAG_LEQ;
@@ -260,6 +287,7 @@ public final class OperationHelper {
 						return result;
 					}
 				} else if (h == right.metatag(state, Constants.LE)) {
+					if (ExecutionStatistics.ENABLED) state.statistics.onMetamethod();
 					return Dispatch.call(state, h, left, right).toBoolean();
 				}
 
@@ -268,6 +296,8 @@ public final class OperationHelper {
 	}
 
 	public static boolean eq(LuaState state, LuaValue left, LuaValue right) throws LuaError, LuaUncatchableError, UnwindThrowable {
+		if (left instanceof LuaInteger l && right instanceof LuaInteger r) return l.intValue() == r.intValue();
+
 		int tLeft = left.type();
 		if (tLeft != right.type()) return false;
 
@@ -286,7 +316,10 @@ public final class OperationHelper {
 				if (rightMeta == null) yield false;
 
 				LuaValue h = leftMeta.rawget(CachedMetamethod.EQ);
-				yield !(h.isNil() || h != rightMeta.rawget(CachedMetamethod.EQ)) && Dispatch.call(state, h, left, right).toBoolean();
+				if (h.isNil() || h != rightMeta.rawget(CachedMetamethod.EQ)) yield false;
+
+				if (ExecutionStatistics.ENABLED) state.statistics.onMetamethod();
+				yield Dispatch.call(state, h, left, right).toBoolean();
 			}
 			default -> left == right || left.equals(right);
 		};
@@ -311,6 +344,7 @@ public final class OperationHelper {
 				if (h.isNil()) {
 					return valueOf(((LuaTable) value).length());
 				} else {
+					if (ExecutionStatistics.ENABLED) state.statistics.onMetamethod();
 					return Dispatch.call(state, h, value);
 				}
 			}
@@ -319,6 +353,7 @@ public final class OperationHelper {
 			default: {
 				LuaValue h = value.metatag(state, CachedMetamethod.LEN);
 				if (h.isNil()) throw createUnaryOpError(state, value, "get length of");
+				if (ExecutionStatistics.ENABLED) state.statistics.onMetamethod();
 				return Dispatch.call(state, h, value);
 			}
 		}
@@ -362,6 +397,7 @@ public final class OperationHelper {
 
 		LuaValue meta = value.metatag(state, Constants.UNM);
 		if (meta.isNil()) throw createUnaryOpError(state, value, "perform arithmetic on");
+		if (ExecutionStatistics.ENABLED) state.statistics.onMetamethod();
 
 		return Dispatch.call(state, meta, value);
 	}
@@ -432,6 +468,46 @@ public final class OperationHelper {
 				throw ErrorFactory.operandError(state, t, "index", stack);
 			}
 
+			if (ExecutionStatistics.ENABLED) state.statistics.onMetamethod();
+			if (tm instanceof LuaFunction metaFunc) return Dispatch.call(state, metaFunc, t, key);
+
+			t = tm;
+			stack = -1;
+		}
+		while (++loop < Constants.MAXTAGLOOP);
+		throw new LuaError("loop in gettable", state.allocationTracker);
+	}
+
+	/**
+	 * Return value for field reference with a constant string key, including metatag processing.
+	 * <p>
+	 * This behaves the same as {@link #getTable(LuaState, LuaValue, LuaValue, int)}, but uses an inline cache to avoid
+	 * searching the table.
+	 *
+	 * @param state The current lua state
+	 * @param t     {@link LuaValue} on which field is being referenced.
+	 * @param key   The key to index with.
+	 * @param stack The stack slot of {@code t}, used for error messages.
+	 * @param cache The function's {@linkplain Prototype#indexCache inline caches}.
+	 * @param pc    The current program counter, and thus the index of the cache to use.
+	 * @return {@link LuaValue} for the {@code key} if it exists, or {@link Constants#NIL}
+	 * @throws LuaError        If there is a loop in metatag processing
+	 * @throws UnwindThrowable If the {@code __get} metamethod yielded.
+	 */
+	public static LuaValue getTable(LuaState state, LuaValue t, LuaString key, int stack, int[] cache, int pc) throws LuaError, LuaUncatchableError, UnwindThrowable {
+		LuaValue tm;
+		int loop = 0;
+		do {
+			if (t instanceof LuaTable table) {
+				LuaValue res = table.rawget(key, cache, pc);
+				if (!res.isNil() || (tm = t.metatag(state, CachedMetamethod.INDEX)).isNil()) {
+					return res;
+				}
+			} else if ((tm = t.metatag(state, CachedMetamethod.INDEX)).isNil()) {
+				throw ErrorFactory.operandError(state, t, "index", stack);
+			}
+
+			if (ExecutionStatistics.ENABLED) state.statistics.onMetamethod();
 			if (tm instanceof LuaFunction metaFunc) return Dispatch.call(state, metaFunc, t, key);
 
 			t = tm;
@@ -441,6 +517,40 @@ public final class OperationHelper {
 		throw new LuaError("loop in gettable", state.allocationTracker);
 	}
 
+	/**
+	 * Index a value without invoking any metamethods. This is used by compiled code to avoid preparing for a
+	 * metamethod call when one is not needed.
+	 *
+	 * @param t   The value to index.
+	 * @param key The key to index with.
+	 * @return The value for this key, or {@code null} if {@code t} is not a table, or the key is absent and the table
+	 * has a metatable (and so indexing may invoke {@code __index}).
+	 */
+	public static @Nullable LuaValue tryGetTable(LuaValue t, LuaValue key) {
+		if (!(t instanceof LuaTable table)) return null;
+
+		LuaValue res = table.rawget(key);
+		return res.isNil() && table.getMetatable(null) != null ? null : res;
+	}
+
+	/**
+	 * Index a value with a constant string key without invoking any metamethods, using an inline cache to avoid
+	 * searching the table.
+	 *
+	 * @param t     The value to index.
+	 * @param key   The key to index with.
+	 * @param cache The function's {@linkplain Prototype#indexCache inline caches}.
+	 * @param pc    The current program counter, and thus the index of the cache to use.
+	 * @return The value for this key, or {@code null} if indexing may invoke a metamethod.
+	 * @see #tryGetTable(LuaValue, LuaValue)
+	 */
+	public static @Nullable LuaValue tryGetTable(LuaValue t, LuaString key, int[] cache, int pc) {
+		if (!(t instanceof LuaTable table)) return null;
+
+		LuaValue res = table.rawget(key, cache, pc);
+		return res.isNil() && table.getMetatable(null) != null ? null : res;
+	}
+
 	/**
 	 * Perform field assignment including metatag processing.
 	 *
@@ -471,6 +581,7 @@ public final class OperationHelper {
 			if ((tm = t.metatag(state, CachedMetamethod.NEWINDEX)).isNil()) {
 				throw ErrorFactory.operandError(state, t, "index", stack);
 			}
+			if (ExecutionStatistics.ENABLED) state.statistics.onMetamethod();
 			if (tm instanceof LuaFunction metaFunc) {
 				Dispatch.call(state, metaFunc, t, key, value);
 				return;
@@ -485,7 +596,10 @@ public final class OperationHelper {
 
 	public static LuaValue toString(LuaState state, LuaValue value) throws LuaError, LuaUncatchableError, UnwindThrowable {
 		LuaValue h = value.metatag(state, Constants.TOSTRING);
-		return h.isNil() ? toStringDirect(state, value) : Dispatch.call(state, h, value);
+		if (h.isNil()) return toStringDirect(state, value);
+
+		if (ExecutionStatistics.ENABLED) state.statistics.onMetamethod();
+		return Dispatch.call(state, h, value);
 	}
 
 	public static LuaString checkToString(LuaValue value, LuaState state) throws LuaError, LuaUncatchableError {
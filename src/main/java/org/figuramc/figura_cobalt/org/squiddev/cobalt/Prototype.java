@@ -26,10 +26,14 @@ package org.figuramc.figura_cobalt.org.squiddev.cobalt;
 
 import org.figuramc.figura_cobalt.LuaUncatchableError;
 import org.figuramc.memory_tracker.AllocationTracker;
+import org.figuramc.figura_cobalt.org.squiddev.cobalt.function.BaselineCompiler;
+import org.figuramc.figura_cobalt.org.squiddev.cobalt.function.CompiledFunction;
 import org.figuramc.figura_cobalt.org.squiddev.cobalt.function.LocalVariable;
 import org.figuramc.figura_cobalt.org.squiddev.cobalt.function.LuaInterpretedFunction;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import java.lang.ref.WeakReference;
+
 /**
  * Prototype representing compiled lua code.
  * <p>
@@ -80,10 +84,50 @@ public final class Prototype {
 	// State, for mem accounting
 	public final LuaState state;
 
+	/**
+	 * Inline caches for {@link Lua#OP_GETTABLE}, {@link Lua#OP_GETTABUP} and {@link Lua#OP_SELF} instructions with a
+	 * constant string key, indexed by program counter. Each entry holds the table node the key was last found in.
+	 *
+	 * @see OperationHelper#getTable(LuaState, LuaValue, LuaString, int, int[], int)
+	 */
+	public final int[] indexCache;
+
+	/**
+	 * Size feedback for {@link Lua#OP_NEWTABLE} instructions, indexed by program counter. Entries for other
+	 * instructions are {@code null}.
+	 *
+	 * @see TableSite
+	 */
+	public final @Nullable TableSite[] tableSites;
+
+	/**
+	 * The number of calls and backwards jumps executed by this function, used by the {@link BaselineCompiler} to decide
+	 * when to compile it.
+	 */
+	public int hotness;
+
+	/**
+	 * The compiled form of this function, or {@code null} if it has not been compiled (yet).
+	 *
+	 * @see BaselineCompiler
+	 */
+	public @Nullable CompiledFunction compiled;
+
+	/**
+	 * The last closure created from this prototype by {@link Lua#OP_CLOSURE}. This may be reused if the instruction is
+	 * executed again and would capture the same upvalues.
+	 * <p>
+	 * This is held weakly, so that the cache does not keep the closure's upvalues alive.
+	 */
+	public @Nullable WeakReference<LuaInterpretedFunction> closureCache;
+
+	private static final int[] NO_CACHE = new int[0];
+	private static final TableSite[] NO_SITES = new TableSite[0];
+
 	private static final int SIZE_ESTIMATE =
 			AllocationTracker.OBJECT_SIZE
-			+ AllocationTracker.REFERENCE_SIZE * 10
-			+ AllocationTracker.INT_SIZE * 4
+			+ AllocationTracker.REFERENCE_SIZE * 14
+			+ AllocationTracker.INT_SIZE * 5
 			+ AllocationTracker.BOOLEAN_SIZE;
 
 	public Prototype(
@@ -109,9 +153,16 @@ public final class Prototype {
 		this.lineInfo = lineInfo;
 		this.columnInfo = columnInfo;
 		this.locals = locals;
+		this.indexCache = hasConstantIndex(code, constants) ? new int[code.length] : NO_CACHE;
+		this.tableSites = createTableSites(code);
 
 		// Track
 		if (state.allocationTracker != null) {
+			state.allocationTracker.track(indexCache);
+			state.allocationTracker.track(tableSites);
+			for (TableSite site : tableSites) {
+				if (site != null) state.allocationTracker.track(site, TableSite.SIZE_ESTIMATE);
+			}
 			state.allocationTracker.track(constants);
 			state.allocationTracker.track(code);
 			state.allocationTracker.track(children);
@@ -123,6 +174,29 @@ public final class Prototype {
 		}
 	}
 
+	private static @Nullable TableSite[] createTableSites(int[] code) {
+		TableSite[] sites = NO_SITES;
+		for (int pc = 0; pc < code.length; pc++) {
+			if (Lua.GET_OPCODE(code[pc]) != Lua.OP_NEWTABLE) continue;
+
+			if (sites == NO_SITES) sites = new TableSite[code.length];
+			sites[pc] = new TableSite();
+		}
+		return sites;
+	}
+
+	private static boolean hasConstantIndex(int[] code, LuaValue[] constants) {
+		for (int i : code) {
+			int key = switch (Lua.GET_OPCODE(i)) {
+				case Lua.OP_GETTABLE, Lua.OP_GETTABUP, Lua.OP_SELF -> Lua.GETARG_C(i);
+				default -> 0;
+			};
+			if (Lua.ISK(key) && constants[Lua.INDEXK(key)] instanceof LuaString) return true;
+		}
+
+		return false;
+	}
+
 	public LuaString shortSource() {
 		return shortSource;
 	}
@@ -0,0 +1,191 @@
+package org.figuramc.figura_cobalt.org.squiddev.cobalt;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.figuramc.figura_cobalt.LuaUncatchableError;
+import org.figuramc.memory_tracker.AllocationTracker;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The layout of a table's string keys, shared between all tables which had the same keys added in the same order.
+ * <p>
+ * Most tables are records with a small, fixed set of string keys, such as {@code {x = 1, y = 2}}. Rather than giving
+ * each of these its own hash part, they share a shape, which maps each key to a slot in the table's
+ * {@linkplain LuaTable values array}. Adding a new key moves the table to a child shape, which has this key in the next
+ * slot. As shapes are immutable, a key's slot never changes, which allows the slot to be cached by the interpreter.
+ * <p>
+ * Each allocation tracker (and so usually each {@link LuaState}) has its own {@linkplain #root(AllocationTracker) tree of
+ * shapes}, so that states do not contend on the same shapes, or keep each other's shapes alive. Child shapes are only
+ * held weakly, so that shapes are freed once there are no more tables using them. A new shape is charged to the
+ * allocation tracker of its tree.
+ *
+ * @see LuaTable#rawget(LuaString, int[], int)
+ */
+final class Shape {
+	/**
+	 * The maximum number of keys in a shape. Tables with more keys than this use a normal hash part instead.
+	 */
+	static final int MAX_KEYS = 32;
+
+	/**
+	 * The shape with no keys, which all tables start with. This is also the root shape for tables without an allocation
+	 * tracker.
+	 */
+	static final Shape ROOT = new Shape(new LuaString[0]);
+
+	/**
+	 * The root shape for each allocation tracker.
+	 */
+	private static final Map<AllocationTracker<LuaUncatchableError>, Shape> roots = new WeakHashMap<>();
+
+	/**
+	 * The most recently used root shape on this thread. This avoids locking {@link #roots} for every table.
+	 */
+	private static final ThreadLocal<@Nullable RootCache> lastRoot = new ThreadLocal<>();
+
+	private static final int SIZE_ESTIMATE = AllocationTracker.OBJECT_SIZE + AllocationTracker.REFERENCE_SIZE * 5;
+
+	private final LuaString[] keys;
+
+	/**
+	 * An open-addressed hash table of {@link #keys}, with the slot of each key in {@link #slots}.
+	 */
+	private final @Nullable LuaString[] index;
+	private final byte[] slots;
+
+	private @Nullable Map<LuaString, WeakReference<Shape>> transitions;
+
+	/**
+	 * The child shape from the most recent transition. This allows tables created by the same constructor to find their
+	 * shape without taking a lock.
+	 */
+	private volatile @Nullable WeakReference<Shape> lastTransition;
+
+	private Shape(LuaString[] keys) {
+		this.keys = keys;
+
+		int capacity = Integer.highestOneBit(Math.max(keys.length, 1)) << 2;
+		index = new LuaString[capacity];
+		slots = new byte[capacity];
+		for (int slot = 0; slot < keys.length; slot++) {
+			int i = keys[slot].hashCode() & (capacity - 1);
+			while (index[i] != null) i = (i + 1) & (capacity - 1);
+			index[i] = keys[slot];
+			slots[i] = (byte) slot;
+		}
+	}
+
+	/**
+	 * Get the root shape for tables with a given allocation tracker.
+	 *
+	 * @param allocTracker The table's allocation tracker.
+	 * @return The root shape, with no keys.
+	 */
+	static Shape root(@Nullable AllocationTracker<LuaUncatchableError> allocTracker) {
+		if (allocTracker == null) return ROOT;
+
+		RootCache last = lastRoot.get();
+		if (last != null && last.allocTracker().get() == allocTracker) return last.root();
+
+		Shape root;
+		synchronized (roots) {
+			root = roots.computeIfAbsent(allocTracker, x -> new Shape(new LuaString[0]));
+		}
+
+		lastRoot.set(new RootCache(new WeakReference<>(allocTracker), root));
+		return root;
+	}
+
+	/**
+	 * Get the number of keys in this shape.
+	 *
+	 * @return The number of keys.
+	 */
+	int size() {
+		return keys.length;
+	}
+
+	/**
+	 * Get the key in a slot.
+	 *
+	 * @param slot The slot, between 0 and {@link #size()}.
+	 * @return The key in this slot.
+	 */
+	LuaString key(int slot) {
+		return keys[slot];
+	}
+
+	/**
+	 * Check if a slot contains a specific key.
+	 *
+	 * @param slot The slot, which may be out of bounds.
+	 * @param key  The key to check.
+	 * @return Whether this slot exists and contains {@code key}.
+	 */
+	boolean hasKey(int slot, LuaString key) {
+		return slot < keys.length && keys[slot].equals(key);
+	}
+
+	/**
+	 * Find the slot of a key.
+	 *
+	 * @param key The key to find.
+	 * @return The key's slot, or {@code -1} if it is not in this shape.
+	 */
+	int slotOf(LuaString key) {
+		LuaString[] index = this.index;
+		int mask = index.length - 1;
+		for (int i = key.hashCode() & mask; ; i = (i + 1) & mask) {
+			LuaString existing = index[i];
+			if (existing == null) return -1;
+			if (existing.equals(key)) return slots[i];
+		}
+	}
+
+	/**
+	 * Get the shape with an additional key. This key must not already be in this shape, and this shape must have fewer
+	 * than {@link #MAX_KEYS} keys.
+	 *
+	 * @param key          The key to add.
+	 * @param allocTracker The allocation tracker to charge if a new shape is created.
+	 * @return The child shape, with {@code key} in slot {@link #size()}.
+	 */
+	Shape withKey(LuaString key, @Nullable AllocationTracker<LuaUncatchableError> allocTracker) throws LuaUncatchableError {
+		WeakReference<Shape> last = lastTransition;
+		Shape lastChild = last == null ? null : last.get();
+		if (lastChild != null && lastChild.keys[keys.length] == key) return lastChild;
+
+		Shape child;
+		WeakReference<Shape> reference;
+		synchronized (this) {
+			Map<LuaString, WeakReference<Shape>> transitions = this.transitions;
+			if (transitions == null) transitions = this.transitions = new WeakHashMap<>();
+
+			reference = transitions.get(key);
+			child = reference == null ? null : reference.get();
+			if (child == null) {
+				LuaString[] childKeys = new LuaString[keys.length + 1];
+				System.arraycopy(keys, 0, childKeys, 0, keys.length);
+				childKeys[keys.length] = key;
+
+				child = new Shape(childKeys);
+				if (allocTracker != null) {
+					allocTracker.track(child, SIZE_ESTIMATE);
+					allocTracker.track(child.keys);
+					allocTracker.track(child.index);
+					allocTracker.track(child.slots);
+				}
+
+				transitions.put(key, reference = new WeakReference<>(child));
+			}
+		}
+
+		lastTransition = reference;
+		return child;
+	}
+
+	private record RootCache(WeakReference<AllocationTracker<LuaUncatchableError>> allocTracker, Shape root) {
+	}
+}
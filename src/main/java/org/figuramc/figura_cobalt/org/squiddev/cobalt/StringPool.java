@@ -0,0 +1,117 @@
+package org.figuramc.figura_cobalt.org.squiddev.cobalt;
+
+import java.lang.ref.WeakReference;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Interns short {@link LuaString}s, so that equal strings are usually the same object. This reduces memory usage, and
+ * allows string comparisons and table lookups to succeed on an identity check.
+ * <p>
+ * The strategy can be chosen by starting the JVM with {@code -Dcobalt.stringPool=<strategy>}:
+ * <ul>
+ *   <li>{@code recent} (the default): A small per-thread cache of recently created strings. This is cheap, but only
+ *   catches strings which are created repeatedly in a short period of time.</li>
+ *   <li>{@code weak}: A pool shared between all threads and {@link LuaState}s. Strings are held weakly, and so are
+ *   removed once no longer used. This guarantees that equal short strings are the same object, but adding a string to
+ *   the pool is relatively expensive, so it is slower for code which creates many distinct strings.</li>
+ *   <li>{@code none}: Strings are never interned.</li>
+ * </ul>
+ * Unknown strategies are ignored, and the default is used instead.
+ * <p>
+ * When {@linkplain ExecutionStatistics statistics} are enabled, the number of hits and misses are recorded, which may
+ * be used to choose between these.
+ *
+ * @see LuaString#RECENT_STRINGS_MAX_LENGTH
+ */
+final class StringPool {
+	enum Strategy {
+		RECENT,
+		WEAK,
+		NONE,
+	}
+
+	static final Strategy STRATEGY = getStrategy();
+
+	/**
+	 * The number of segments in the weak pool. Each segment is locked independently, to reduce contention between
+	 * threads. Must be a power of 2.
+	 */
+	private static final int SEGMENTS = 32;
+
+	@SuppressWarnings("unchecked")
+	private static final Map<LuaString, WeakReference<LuaString>>[] segments = (Map<LuaString, WeakReference<LuaString>>[]) new Map<?, ?>[SEGMENTS];
+
+	static {
+		for (int i = 0; i < SEGMENTS; i++) segments[i] = new WeakHashMap<>();
+	}
+
+	private StringPool() {
+	}
+
+	private static Strategy getStrategy() {
+		String strategy = System.getProperty("cobalt.stringPool");
+		if (strategy == null) return Strategy.RECENT;
+
+		try {
+			return Strategy.valueOf(strategy.toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			// Throwing here would fail to initialise this class, breaking every later string operation.
+			return Strategy.RECENT;
+		}
+	}
+
+	/**
+	 * Find an existing string equal to this one, or add it to the pool if there is none.
+	 *
+	 * @param string The string to intern.
+	 * @return An equal string, possibly {@code string} itself.
+	 */
+	static LuaString intern(LuaString string) {
+		LuaString existing = switch (STRATEGY) {
+			case RECENT -> RecentCache.INSTANCE.get().get(string);
+			case WEAK -> internWeak(string);
+			case NONE -> string;
+		};
+
+		if (ExecutionStatistics.ENABLED) ExecutionStatistics.onIntern(existing != string);
+		return existing;
+	}
+
+	private static LuaString internWeak(LuaString string) {
+		// WeakHashMap uses the low bits of the hash, so use the high bits to pick a segment.
+		Map<LuaString, WeakReference<LuaString>> segment = segments[string.hashCode() >>> 27 & (SEGMENTS - 1)];
+		synchronized (segment) {
+			WeakReference<LuaString> reference = segment.get(string);
+			LuaString existing = reference == null ? null : reference.get();
+			if (existing != null) return existing;
+
+			segment.put(string, new WeakReference<>(string));
+			return string;
+		}
+	}
+
+	private static class RecentCache {
+		/**
+		 * Simple cache of recently created strings that are short.
+		 * This is simply a list of strings, indexed by their hash codes modulo the cache size
+		 * that have been recently constructed.  If a string is being constructed frequently
+		 * from different contexts, it will generally may show up as a cache hit and resolve
+		 * to the same value.
+		 */
+		public final LuaString[] recentShortStrings = new LuaString[LuaString.RECENT_STRINGS_CACHE_SIZE];
+
+		public LuaString get(LuaString s) {
+			final int index = s.hashCode() & (LuaString.RECENT_STRINGS_CACHE_SIZE - 1);
+			final LuaString cached = recentShortStrings[index];
+			if (cached != null && s.equals(cached)) {
+				return cached;
+			}
+			recentShortStrings[index] = s;
+			return s;
+		}
+
+		public static final ThreadLocal<RecentCache> INSTANCE = ThreadLocal.withInitial(RecentCache::new);
+	}
+}
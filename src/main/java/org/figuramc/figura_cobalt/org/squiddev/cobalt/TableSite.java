@@ -0,0 +1,70 @@
+package org.figuramc.figura_cobalt.org.squiddev.cobalt;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.figuramc.figura_cobalt.LuaUncatchableError;
+import org.figuramc.memory_tracker.AllocationTracker;
+
+/**
+ * Feedback about the tables created by a single {@link Lua#OP_NEWTABLE} instruction.
+ * <p>
+ * The compiler only sizes tables from their constructor, so tables which are filled in after being created (such as
+ * {@code local t = {} for i = 1, n do t[i] = i end}) must be resized several times as they grow. Instead, tables
+ * created at a site report the size they grow to, and later tables from the same site start at that size.
+ * <p>
+ * Sizes are capped at {@link #MAX_ARRAY_SIZE} and {@link #MAX_HASH_SIZE}, and are halved every
+ * {@link #DECAY_INTERVAL} tables, so that one unusually large table does not cause all future tables to be too large.
+ *
+ * @see Prototype#tableSites
+ */
+public final class TableSite {
+	static final int MAX_ARRAY_SIZE = 1 << 10;
+	static final int MAX_HASH_SIZE = 1 << 8;
+	private static final int DECAY_INTERVAL = 64;
+
+	static final int SIZE_ESTIMATE = AllocationTracker.OBJECT_SIZE
+		+ AllocationTracker.INT_SIZE * 3
+		+ AllocationTracker.BOOLEAN_SIZE;
+
+	private int arraySize;
+	private int hashSize;
+	private int created;
+
+	/**
+	 * Whether the last table to report its size used the {@linkplain LuaTable numeric array representation}.
+	 */
+	boolean numeric;
+
+	TableSite() {
+	}
+
+	/**
+	 * Create a new table from this site.
+	 *
+	 * @param arraySize    The size of the array part requested by the constructor.
+	 * @param hashSize     The size of the hash part requested by the constructor.
+	 * @param allocTracker The allocation tracker for the new table.
+	 * @return The new table.
+	 */
+	public LuaTable newTable(int arraySize, int hashSize, @Nullable AllocationTracker<LuaUncatchableError> allocTracker) throws LuaUncatchableError {
+		if (++created >= DECAY_INTERVAL) {
+			created = 0;
+			this.arraySize >>= 1;
+			this.hashSize >>= 1;
+		}
+
+		return new LuaTable(this, Math.max(arraySize, this.arraySize), Math.max(hashSize, this.hashSize), allocTracker);
+	}
+
+	/**
+	 * Record the size of a table created at this site, after it has been resized.
+	 *
+	 * @param arraySize The size of the array part.
+	 * @param hashSize  The size of the hash part.
+	 * @param numeric   Whether the array part only contains numbers.
+	 */
+	void onResize(int arraySize, int hashSize, boolean numeric) {
+		if (arraySize > this.arraySize) this.arraySize = Math.min(arraySize, MAX_ARRAY_SIZE);
+		if (hashSize > this.hashSize) this.hashSize = Math.min(hashSize, MAX_HASH_SIZE);
+		if (arraySize > 0) this.numeric = numeric;
+	}
+}
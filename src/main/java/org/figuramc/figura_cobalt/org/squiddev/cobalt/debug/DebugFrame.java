@@ -148,6 +148,14 @@ public final class DebugFrame {
 	 */
 	public Upvalue lastUpvalue;
 
+	/**
+	 * The {@link #stack} of a previous function which ran in this frame, and which may be reused by the next one. Every
+	 * slot is set to {@link Constants#NIL}, so this never keeps the previous function's values alive.
+	 *
+	 * @see #allocateStack(int)
+	 */
+	private LuaValue @Nullable [] freeStack;
+
 	public Object state;
 
 	public final DebugFrame previous;
@@ -166,12 +174,43 @@ public final class DebugFrame {
 	public void cleanup() {
 		Upvalue upvalue = lastUpvalue;
 		while (upvalue != null) upvalue = upvalue.close();
+		lastUpvalue = null;
+	}
+
+	/**
+	 * Get a register array for a function about to run in this frame.
+	 * <p>
+	 * As frames are reused by {@link DebugState}, each call at a given depth can use the same registers as the previous
+	 * one, rather than allocating a new array on every call.
+	 *
+	 * @param size The minimum size of the array.
+	 * @return The register array, with every slot set to {@link Constants#NIL}.
+	 */
+	public LuaValue[] allocateStack(int size) {
+		LuaValue[] stack = freeStack;
+		freeStack = null;
+		if (stack != null && stack.length >= size) return stack;
+
+		stack = new LuaValue[size];
+		System.arraycopy(Constants.NILS, 0, stack, 0, size);
+		return stack;
 	}
 
 	void clear() {
+		// If there are no open upvalues, nothing else references this function's registers, and so they can be reused
+		// by the next call. Otherwise (such as when unwinding after an error), we leave the array to the upvalues.
+		LuaValue[] stack = this.stack;
+		if (stack != null && lastUpvalue == null) {
+			// Clear the registers now rather than when the array is reused, as there may never be another call at this
+			// depth. The function can only have used the first maxStackSize registers, the rest are already nil.
+			int size = closure == null ? stack.length : Math.min(closure.getPrototype().maxStackSize, stack.length);
+			System.arraycopy(Constants.NILS, 0, stack, 0, size);
+			freeStack = stack;
+		}
+
 		func = null;
 		closure = null;
-		stack = null;
+		this.stack = null;
 		lastUpvalue = null;
 		state = null;
 		varargs = extras = null;
@@ -185,6 +224,18 @@ public final class DebugFrame {
 		lastUpvalue = upvalue;
 	}
 
+	/**
+	 * Check if a register has already been captured by an open upvalue.
+	 *
+	 * @param slot The register to check.
+	 * @return Whether {@link #getUpvalue(int)} would return an existing upvalue.
+	 */
+	public boolean hasUpvalue(int slot) {
+		Upvalue upvalue = lastUpvalue;
+		while (upvalue != null && upvalue.getIndex() > slot) upvalue = upvalue.previous;
+		return upvalue != null && upvalue.getIndex() == slot;
+	}
+
 	public Upvalue getUpvalue(int slot) {
 		Upvalue upvalue = lastUpvalue, next = null;
 		// We've got a linked list of the form U(1) <- ... <- U(slot) <- ... <- U(top). Keep
@@ -253,6 +253,16 @@ public final class DebugState {
 		return level >= 0 && level <= top ? stack[top - level] : null;
 	}
 
+	/**
+	 * Get the backing array of debug info, for use by {@link SamplingProfiler}. Only frames up to {@link #top} are
+	 * in use.
+	 *
+	 * @return The debug info array.
+	 */
+	DebugFrame[] frames() {
+		return stack;
+	}
+
 	public void onCall(DebugFrame frame) throws UnwindThrowable, LuaError, LuaUncatchableError {
 		if ((hookMask & HOOK_CALL) == 0 || inhook) return;
 
@@ -420,6 +430,18 @@ public final class DebugState {
 		return (hookMask & HOOK_RETURN) != 0;
 	}
 
+	/**
+	 * Whether we need to observe every instruction, either because a line or count hook is installed, or because we are
+	 * currently within a hook.
+	 * <p>
+	 * Compiled functions cannot run in this state, and so fall back to the interpreter.
+	 *
+	 * @return Whether instruction-level hooks are active.
+	 */
+	public boolean hasInstructionHook() {
+		return inhook || (hookMask & (HOOK_LINE | HOOK_COUNT)) != 0;
+	}
+
 	@SuppressWarnings("unchecked")
 	public Varargs resume(DebugFrame frame, Varargs args) throws LuaError, LuaUncatchableError, UnwindThrowable {
 		int flags = frame.flags;
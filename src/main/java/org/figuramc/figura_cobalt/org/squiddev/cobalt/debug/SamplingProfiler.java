@@ -0,0 +1,171 @@
+package org.figuramc.figura_cobalt.org.squiddev.cobalt.debug;
+
+import org.figuramc.figura_cobalt.org.squiddev.cobalt.LuaState;
+import org.figuramc.figura_cobalt.org.squiddev.cobalt.LuaThread;
+import org.figuramc.figura_cobalt.org.squiddev.cobalt.Prototype;
+import org.figuramc.figura_cobalt.org.squiddev.cobalt.function.LuaClosure;
+import org.figuramc.figura_cobalt.org.squiddev.cobalt.function.LuaFunction;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A sampling profiler for Lua code.
+ * <p>
+ * The profiler runs on a background thread, periodically reading the call stack of the {@link LuaState}'s
+ * {@linkplain LuaState#getCurrentThread() current thread}. Each sample records the functions on the stack, and the
+ * current line of the innermost Lua function. Samples can then be exported as "collapsed stacks", as consumed by
+ * flame graph tools:
+ * <pre>{@code
+ * SamplingProfiler profiler = new SamplingProfiler(state);
+ * profiler.start(1, TimeUnit.MILLISECONDS);
+ * // Run some code
+ * profiler.stop();
+ * profiler.writeCollapsed(System.out);
+ * }</pre>
+ * <p>
+ * The call stack is read without any synchronisation with the Lua thread, and so samples are only approximate: a
+ * sample taken mid-call may see a partially constructed frame (in which case it is discarded). Functions compiled by
+ * the {@link org.figuramc.figura_cobalt.org.squiddev.cobalt.function.BaselineCompiler} only update their
+ * {@linkplain DebugFrame#pc program counter} at calls and loops, so their samples are attributed to the most recent
+ * of these.
+ */
+public final class SamplingProfiler {
+	private final LuaState state;
+	private final Map<String, LongAdder> samples = new ConcurrentHashMap<>();
+	private final LongAdder sampleCount = new LongAdder();
+
+	private volatile @Nullable Thread thread;
+
+	public SamplingProfiler(LuaState state) {
+		this.state = state;
+	}
+
+	/**
+	 * Start sampling on a background thread.
+	 *
+	 * @param interval The time between each sample.
+	 * @param unit     The unit of {@code interval}.
+	 * @throws IllegalArgumentException If the interval is not positive.
+	 * @throws IllegalStateException If the profiler is already running.
+	 */
+	public synchronized void start(long interval, TimeUnit unit) {
+		if (interval <= 0) throw new IllegalArgumentException("interval must be positive");
+		if (thread != null) throw new IllegalStateException("Profiler is already running");
+
+		long intervalNanos = unit.toNanos(interval);
+		Thread thread = this.thread = new Thread(() -> {
+			while (this.thread == Thread.currentThread()) {
+				sample();
+				LockSupport.parkNanos(this, intervalNanos);
+			}
+		}, "Lua sampling profiler");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop sampling, waiting for the background thread to finish. This does nothing if the profiler is not running.
+	 */
+	public synchronized void stop() {
+		Thread thread = this.thread;
+		if (thread == null) return;
+
+		this.thread = null;
+		LockSupport.unpark(thread);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Record the current call stack. This is called periodically by the background thread, but may also be called
+	 * directly if the caller wishes to schedule samples itself.
+	 */
+	public void sample() {
+		LuaThread current = state.getCurrentThread();
+		if (current == null) return;
+
+		DebugState ds = current.getDebugState();
+		DebugFrame[] frames = ds.frames();
+		int top = Math.min(ds.top, frames.length - 1);
+		if (top < 0) return;
+
+		List<String> names = new ArrayList<>(top + 2);
+		DebugFrame leaf = null;
+		for (int i = 0; i <= top; i++) {
+			DebugFrame frame = frames[i];
+			// This frame is being pushed or popped.
+			if (frame == null) return;
+
+			LuaClosure closure = frame.closure;
+			LuaFunction function = frame.func;
+			if (closure != null) {
+				Prototype p = closure.getPrototype();
+				names.add(p.lineDefined == 0 ? "main chunk <" + p.shortSource + ">" : "function <" + p.shortSource + ":" + p.lineDefined + ">");
+				leaf = frame;
+			} else if (function != null) {
+				names.add("[Java] " + function.debugName());
+				leaf = null;
+			} else {
+				return;
+			}
+		}
+
+		// Include the current line of the innermost function, if it is a Lua one.
+		if (leaf != null) {
+			LuaClosure closure = leaf.closure;
+			int line = closure == null ? -1 : closure.getPrototype().lineAt(leaf.pc);
+			if (line >= 0) names.add(closure.getPrototype().shortSource + ":" + line);
+		}
+
+		StringBuilder key = new StringBuilder();
+		for (String name : names) {
+			if (key.length() > 0) key.append(';');
+			// Collapsed stacks use ';' to separate frames and have one stack per line.
+			key.append(name.replace(';', ',').replace('\n', ' '));
+		}
+
+		samples.computeIfAbsent(key.toString(), k -> new LongAdder()).increment();
+		sampleCount.increment();
+	}
+
+	/**
+	 * Get the number of samples recorded so far.
+	 *
+	 * @return The number of samples.
+	 */
+	public long getSampleCount() {
+		return sampleCount.sum();
+	}
+
+	/**
+	 * Discard all recorded samples.
+	 */
+	public void reset() {
+		samples.clear();
+		sampleCount.reset();
+	}
+
+	/**
+	 * Write the recorded samples in the "collapsed stack" format. Each line contains a semicolon-separated list of
+	 * frames (outermost first), followed by a space and the number of times that stack was sampled.
+	 *
+	 * @param out The output to write to.
+	 * @throws IOException If the output could not be written to.
+	 */
+	public void writeCollapsed(Appendable out) throws IOException {
+		for (Map.Entry<String, LongAdder> entry : samples.entrySet()) {
+			out.append(entry.getKey()).append(' ').append(Long.toString(entry.getValue().sum())).append('\n');
+		}
+	}
+}
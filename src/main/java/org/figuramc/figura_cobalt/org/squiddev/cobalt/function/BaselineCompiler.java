@@ -0,0 +1,89 @@
+package org.figuramc.figura_cobalt.org.squiddev.cobalt.function;
+
+import org.figuramc.figura_cobalt.LuaUncatchableError;
+import org.figuramc.figura_cobalt.org.squiddev.cobalt.LuaState;
+import org.figuramc.figura_cobalt.org.squiddev.cobalt.LuaValue;
+import org.figuramc.figura_cobalt.org.squiddev.cobalt.Prototype;
+import org.figuramc.figura_cobalt.org.squiddev.cobalt.compiler.LoadState;
+import org.figuramc.figura_cobalt.org.squiddev.cobalt.debug.DebugFrame;
+import org.figuramc.figura_cobalt.org.squiddev.cobalt.debug.DebugState;
+import org.figuramc.memory_tracker.AllocationTracker;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A {@link LoadState.FunctionFactory} which compiles frequently executed functions to JVM bytecode.
+ * <p>
+ * Functions are loaded as normal {@link LuaInterpretedFunction}s, and start off running in the {@link LuaInterpreter}.
+ * Once a {@link Prototype} has been called or looped enough times (see {@link #BaselineCompiler(int)}), it is compiled
+ * to a {@link CompiledFunction}, which the interpreter will then use instead.
+ * <p>
+ * Compiled code falls back to the interpreter when line or count {@linkplain DebugState#setHook debug hooks} are
+ * installed. Frames which were already running in the interpreter when their function was compiled continue to be
+ * interpreted until they reach a point the compiled code can be entered at (such as the next loop iteration).
+ * <p>
+ * This can be enabled with {@link LuaState.Builder#compiler(LoadState.FunctionFactory)}:
+ * <pre>{@code
+ * LuaState state = LuaState.builder().compiler(new BaselineCompiler()).build();
+ * }</pre>
+ */
+public final class BaselineCompiler implements LoadState.FunctionFactory {
+	/**
+	 * The default number of calls and backwards jumps before a function is compiled.
+	 */
+	public static final int DEFAULT_THRESHOLD = 1000;
+
+	private final int threshold;
+
+	public BaselineCompiler() {
+		this(DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * Create a new compiler.
+	 *
+	 * @param threshold The number of calls and backwards jumps a function must perform before it is compiled.
+	 */
+	public BaselineCompiler(int threshold) {
+		if (threshold <= 0) throw new IllegalArgumentException("threshold must be positive");
+		this.threshold = threshold;
+	}
+
+	@Override
+	public LuaClosure load(@Nullable AllocationTracker<LuaUncatchableError> allocTracker, Prototype prototype, LuaValue env) throws LuaUncatchableError {
+		return LoadState.interpretedFunction(allocTracker, prototype, env);
+	}
+
+	/**
+	 * Called by the interpreter before executing a frame.
+	 *
+	 * @param ds The current debug state.
+	 * @param di The frame about to be executed.
+	 * @param p  The function's prototype.
+	 * @return The compiled function to run instead, or {@code null} if the frame should be interpreted.
+	 */
+	@Nullable
+	CompiledFunction onEnter(DebugState ds, DebugFrame di, Prototype p) {
+		if (ds.hasInstructionHook()) return null;
+
+		CompiledFunction compiled = p.compiled;
+		return compiled == null && di.pc == 0 ? tick(p) : compiled;
+	}
+
+	/**
+	 * Called by the interpreter when taking a backwards jump.
+	 *
+	 * @param ds The current debug state.
+	 * @param p  The function's prototype.
+	 * @return Whether a compiled version of this function is available, and the interpreter should switch to it.
+	 */
+	boolean onBackEdge(DebugState ds, Prototype p) {
+		return (p.compiled != null || tick(p) != null) && !ds.hasInstructionHook();
+	}
+
+	private @Nullable CompiledFunction tick(Prototype p) {
+		// We only ever attempt to compile once: if compilation fails, hotness will continue to increase past the
+		// threshold.
+		if (++p.hotness != threshold) return null;
+		return p.compiled = BytecodeEmitter.compile(p);
+	}
+}
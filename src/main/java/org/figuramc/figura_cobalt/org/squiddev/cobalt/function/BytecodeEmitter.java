@@ -0,0 +1,1065 @@
+package org.figuramc.figura_cobalt.org.squiddev.cobalt.function;
+
+import org.figuramc.figura_cobalt.org.squiddev.cobalt.*;
+import org.figuramc.figura_cobalt.org.squiddev.cobalt.debug.DebugFrame;
+import org.figuramc.figura_cobalt.org.squiddev.cobalt.debug.DebugState;
+import org.figuramc.figura_cobalt.org.squiddev.cobalt.debug.Upvalue;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.objectweb.asm.ClassTooLargeException;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodTooLargeException;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.BitSet;
+
+import static org.figuramc.figura_cobalt.org.squiddev.cobalt.Lua.*;
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Translates a {@link Prototype} into a {@link CompiledFunction}.
+ * <p>
+ * Each prototype is compiled to a single hidden class, with one method
+ * ({@link CompiledFunction#execute(LuaState, DebugState, DebugFrame, LuaInterpretedFunction)}) containing the whole
+ * function body. Registers remain in {@link DebugFrame#stack}, and non-trivial instructions call the same helpers as
+ * the {@link LuaInterpreter}, so the two can be freely mixed. The main saving is from removing the instruction fetch,
+ * decode and dispatch, and allowing the JVM to specialise each instruction.
+ * <p>
+ * The method starts with a {@code tableswitch} on {@link DebugFrame#pc}, allowing us to enter at the start of the
+ * function, at loop headers and after any instruction which may yield.
+ * <p>
+ * Arithmetic temporaries which are only used by other arithmetic instructions are kept as {@code double}s in local
+ * variables, rather than being boxed and stored in the register array (see {@link UnboxedRegisters}).
+ */
+final class BytecodeEmitter {
+	/**
+	 * HotSpot does not JIT compile methods larger than this, at which point compiled code would be considerably
+	 * slower than the interpreter.
+	 */
+	private static final int MAX_CODE_SIZE = 8000;
+
+	private static final String CLASS_NAME = Type.getInternalName(CompiledFunction.class) + "$Impl";
+	private static final String SUPER = Type.getInternalName(CompiledFunction.class);
+	private static final String INTERPRETER = Type.getInternalName(LuaInterpreter.class);
+	private static final String OPERATION = Type.getInternalName(OperationHelper.class);
+	private static final String DISPATCH = Type.getInternalName(Dispatch.class);
+	private static final String CONSTANTS = Type.getInternalName(Constants.class);
+	private static final String STATE = Type.getInternalName(LuaState.class);
+	private static final String DEBUG_STATE = Type.getInternalName(DebugState.class);
+	private static final String FRAME = Type.getInternalName(DebugFrame.class);
+	private static final String FUNCTION = Type.getInternalName(LuaInterpretedFunction.class);
+	private static final String UPVALUE = Type.getInternalName(Upvalue.class);
+	private static final String VALUE = Type.getInternalName(LuaValue.class);
+	private static final String NUMBER = Type.getInternalName(LuaNumber.class);
+	private static final String DOUBLE = Type.getInternalName(LuaDouble.class);
+
+	private static final String D_VALUE = Type.getDescriptor(LuaValue.class);
+	private static final String D_BOOLEAN = Type.getDescriptor(LuaBoolean.class);
+	private static final String D_VARARGS = Type.getDescriptor(Varargs.class);
+	private static final String D_VALUES = Type.getDescriptor(LuaValue[].class);
+	private static final String D_UPVALUES = Type.getDescriptor(Upvalue[].class);
+
+	private static final String EXECUTE = Type.getMethodDescriptor(
+		Type.getType(Varargs.class), Type.getType(LuaState.class), Type.getType(DebugState.class), Type.getType(DebugFrame.class), Type.getType(LuaInterpretedFunction.class)
+	);
+	private static final String BINARY = "(" + Type.getDescriptor(LuaState.class) + D_VALUE + D_VALUE + ")" + D_VALUE;
+	private static final String COMPARE = "(" + Type.getDescriptor(LuaState.class) + D_VALUE + D_VALUE + ")Z";
+	private static final String UNARY = "(" + Type.getDescriptor(LuaState.class) + D_VALUE + ")" + D_VALUE;
+	private static final String GET_TABLE = "(" + Type.getDescriptor(LuaState.class) + D_VALUE + D_VALUE + "I)" + D_VALUE;
+	private static final String GET_TABLE_CACHED = "(" + Type.getDescriptor(LuaState.class) + D_VALUE + Type.getDescriptor(LuaString.class) + "I[II)" + D_VALUE;
+	private static final String TRY_GET_TABLE = "(" + D_VALUE + D_VALUE + ")" + D_VALUE;
+	private static final String TRY_GET_TABLE_CACHED = "(" + D_VALUE + Type.getDescriptor(LuaString.class) + "[II)" + D_VALUE;
+	private static final String SET_TABLE = "(" + Type.getDescriptor(LuaState.class) + D_VALUE + D_VALUE + D_VALUE + "I)V";
+	private static final String CALL = "(" + Type.getDescriptor(LuaState.class) + Type.getDescriptor(DebugState.class) + Type.getDescriptor(DebugFrame.class) + D_VALUES + "I)Z";
+	private static final String SAFEPOINT = "(" + Type.getDescriptor(LuaState.class) + Type.getDescriptor(DebugState.class) + Type.getDescriptor(DebugFrame.class) + "I)Z";
+
+	// Local variable slots
+	private static final int THIS = 0;
+	private static final int LUA_STATE = 1;
+	private static final int DS = 2;
+	private static final int DI = 3;
+	private static final int CLOSURE = 4;
+	private static final int STACK = 5;
+	private static final int K = 6;
+	private static final int UPVALUES = 7;
+	private static final int VARARGS = 8;
+	private static final int NEXT_PC = 9;
+	private static final int CALLEE = 10;
+	private static final int TEMP_VALUE = 11;
+	private static final int TEMP_LEFT = 12;
+	private static final int TEMP_RIGHT = 14;
+
+	/**
+	 * The first local variable slot used to hold unboxed registers. Each register takes up two slots.
+	 */
+	private static final int UNBOXED = 16;
+
+	private final int[] code;
+	private final LuaValue[] constants;
+	private final MethodVisitor mv;
+	private final Label[] labels;
+	private final UnboxedRegisters numeric;
+
+	/**
+	 * The registers whose current value is held in an {@linkplain #UNBOXED unboxed local}, rather than in the register
+	 * array.
+	 */
+	private final BitSet pending = new BitSet();
+
+	/**
+	 * The first instruction which has not been charged to the {@linkplain LuaState#useInstructions(int) instruction
+	 * budget}. Instructions from here are charged when the block ends: at a call, return, any taken jump, or when
+	 * falling through into a jump target. This means every path charges exactly the instructions it runs, matching
+	 * the interpreter.
+	 * <p>
+	 * Jumps charge the current block without ending it, as the fall-through path of a conditional jump still needs to
+	 * charge it. Blocks are charged using {@link #dispatched}, so instructions which the interpreter runs together
+	 * (such as a comparison and its jump) are only charged once. The only remaining difference is when resuming in the middle of a block (such as after a yield): the
+	 * compiled code charges from the start of the block, so instructions already charged by the interpreter may be
+	 * charged again. This is bounded by the length of the block.
+	 */
+	private int blockStart;
+
+	/**
+	 * The number of instructions the interpreter dispatches before reaching each instruction, when running the function
+	 * from start to end. This is one less than the program counter for instructions which the interpreter handles
+	 * as part of the previous one: {@link Lua#OP_EXTRAARG}, the {@link Lua#OP_TFORLOOP} after an
+	 * {@link Lua#OP_TFORCALL}, and the {@link Lua#OP_JMP} after a comparison (unless it is also a jump target).
+	 */
+	private final int[] dispatched;
+
+	/**
+	 * Whether each instruction is the target of a jump, and so starts a new block.
+	 */
+	private final boolean[] jumpTargets;
+
+	private BytecodeEmitter(Prototype p, MethodVisitor mv) {
+		this.code = p.code;
+		this.constants = p.constants;
+		this.mv = mv;
+		numeric = UnboxedRegisters.analyse(p);
+
+		labels = new Label[code.length];
+		for (int i = 0; i < labels.length; i++) labels[i] = new Label();
+
+		jumpTargets = findJumpTargets();
+		dispatched = new int[code.length + 1];
+		for (int pc = 0; pc < code.length; pc++) {
+			boolean merged = switch (GET_OPCODE(code[pc])) {
+				case OP_EXTRAARG, OP_TFORLOOP -> true;
+				case OP_JMP -> pc > 0 && !jumpTargets[pc] && switch (GET_OPCODE(code[pc - 1])) {
+					case OP_EQ, OP_LT, OP_LE, OP_TEST, OP_TESTSET -> true;
+					default -> false;
+				};
+				default -> false;
+			};
+			dispatched[pc + 1] = dispatched[pc] + (merged ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Compile a prototype.
+	 *
+	 * @param p The prototype to compile.
+	 * @return The compiled function, or {@code null} if this function cannot be compiled.
+	 */
+	static @Nullable CompiledFunction compile(Prototype p) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+			@Override
+			protected ClassLoader getClassLoader() {
+				return BytecodeEmitter.class.getClassLoader();
+			}
+		};
+		cw.visit(V17, ACC_FINAL | ACC_SUPER, CLASS_NAME, null, SUPER, null);
+
+		String constructor = Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(Prototype.class));
+		MethodVisitor init = cw.visitMethod(0, "<init>", constructor, null, null);
+		init.visitCode();
+		init.visitVarInsn(ALOAD, 0);
+		init.visitVarInsn(ALOAD, 1);
+		init.visitMethodInsn(INVOKESPECIAL, SUPER, "<init>", constructor, false);
+		init.visitInsn(RETURN);
+		init.visitMaxs(0, 0);
+		init.visitEnd();
+
+		MethodVisitor mv = cw.visitMethod(0, "execute", EXECUTE, null, null);
+		Label end = new Label();
+		mv.visitCode();
+		new BytecodeEmitter(p, mv).emit();
+		mv.visitLabel(end);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		cw.visitEnd();
+
+		byte[] bytes;
+		try {
+			bytes = cw.toByteArray();
+		} catch (MethodTooLargeException | ClassTooLargeException e) {
+			return null;
+		}
+		if (end.getOffset() > MAX_CODE_SIZE) return null;
+
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+			return (CompiledFunction) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class, Prototype.class)).invoke(p);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException("Cannot create compiled function", e);
+		}
+	}
+
+	private void emit() {
+		MethodVisitor mv = this.mv;
+
+		mv.visitVarInsn(ALOAD, DI);
+		mv.visitFieldInsn(GETFIELD, FRAME, "stack", D_VALUES);
+		mv.visitVarInsn(ASTORE, STACK);
+		mv.visitVarInsn(ALOAD, THIS);
+		mv.visitFieldInsn(GETFIELD, SUPER, "constants", D_VALUES);
+		mv.visitVarInsn(ASTORE, K);
+		mv.visitVarInsn(ALOAD, CLOSURE);
+		mv.visitFieldInsn(GETFIELD, FUNCTION, "upvalues", D_UPVALUES);
+		mv.visitVarInsn(ASTORE, UPVALUES);
+		mv.visitVarInsn(ALOAD, DI);
+		mv.visitFieldInsn(GETFIELD, FRAME, "varargs", D_VARARGS);
+		mv.visitVarInsn(ASTORE, VARARGS);
+
+		// Check for interrupts and hooks, then jump to the current instruction.
+		mv.visitVarInsn(ALOAD, DI);
+		mv.visitFieldInsn(GETFIELD, FRAME, "pc", "I");
+		safepoint(0);
+
+		boolean[] entries = findEntryPoints();
+		Label interpret = new Label();
+		Label[] targets = new Label[code.length];
+		for (int pc = 0; pc < code.length; pc++) targets[pc] = entries[pc] && !numeric.noEntry[pc] ? labels[pc] : interpret;
+
+		mv.visitVarInsn(ALOAD, DI);
+		mv.visitFieldInsn(GETFIELD, FRAME, "pc", "I");
+		mv.visitTableSwitchInsn(0, code.length - 1, interpret, targets);
+
+		mv.visitLabel(interpret);
+		mv.visitFieldInsn(GETSTATIC, SUPER, "INTERPRET", D_VARARGS);
+		mv.visitInsn(ARETURN);
+
+		for (int pc = 0; pc < code.length; pc++) {
+			if (jumpTargets[pc]) {
+				useInstructions(pc - 1);
+				blockStart = pc;
+			}
+			mv.visitLabel(labels[pc]);
+
+			int i = code[pc];
+			pending.and(numeric.liveIn[pc]);
+			emitInstruction(pc, i);
+
+			if (GET_OPCODE(i) == OP_LOADNIL) {
+				pending.clear(GETARG_A(i), GETARG_A(i) + GETARG_B(i) + 1);
+			} else if (GET_OPCODE(i) != OP_EXTRAARG) {
+				pending.clear(GETARG_A(i));
+			}
+			if (numeric.unboxed[pc]) pending.set(GETARG_A(i));
+		}
+
+		// The last instruction is always a return, but guard against falling off the end anyway.
+		mv.visitFieldInsn(GETSTATIC, SUPER, "INTERPRET", D_VARARGS);
+		mv.visitInsn(ARETURN);
+	}
+
+	/**
+	 * Find all instructions we may start executing from. This is the start of the function, the target of any
+	 * backwards jump, and after any instruction which may yield (see {@link LuaInterpreter#resume}).
+	 *
+	 * @return Whether each instruction is an entry point.
+	 */
+	private boolean[] findEntryPoints() {
+		int[] code = this.code;
+		boolean[] entries = new boolean[code.length + 1];
+		entries[0] = true;
+
+		for (int pc = 0; pc < code.length; pc++) {
+			int i = code[pc];
+			switch (GET_OPCODE(i)) {
+				case OP_JMP, OP_FORLOOP, OP_TFORLOOP -> {
+					int target = pc + 1 + GETARG_sBx(i);
+					if (target <= pc) entries[target] = true;
+				}
+				case OP_EQ, OP_LT, OP_LE -> {
+					entries[pc + 2] = true;
+					entries[pc + 2 + GETARG_sBx(code[pc + 1])] = true;
+				}
+				case OP_TEST, OP_TESTSET -> {
+					int target = pc + 2 + GETARG_sBx(code[pc + 1]);
+					if (target <= pc) entries[target] = true;
+				}
+				case OP_ADD, OP_SUB, OP_MUL, OP_DIV, OP_MOD, OP_POW, OP_UNM, OP_LEN, OP_GETTABLE, OP_GETTABUP, OP_SELF,
+					 OP_SETTABLE, OP_SETTABUP, OP_CALL, OP_TAILCALL, OP_TFORCALL, OP_CONCAT -> entries[pc + 1] = true;
+			}
+		}
+
+		return entries;
+	}
+
+	/**
+	 * Find the target of all jumps. These start a new block for the {@linkplain #blockStart instruction budget}.
+	 *
+	 * @return Whether each instruction is the target of a jump.
+	 */
+	private boolean[] findJumpTargets() {
+		int[] code = this.code;
+		boolean[] targets = new boolean[code.length];
+
+		for (int pc = 0; pc < code.length; pc++) {
+			int i = code[pc];
+			switch (GET_OPCODE(i)) {
+				case OP_JMP, OP_FORLOOP, OP_FORPREP, OP_TFORLOOP -> targets[pc + 1 + GETARG_sBx(i)] = true;
+				case OP_EQ, OP_LT, OP_LE, OP_TEST, OP_TESTSET -> targets[pc + 2] = true;
+				case OP_LOADBOOL -> {
+					if (GETARG_C(i) != 0) targets[pc + 2] = true;
+				}
+			}
+		}
+
+		return targets;
+	}
+
+	private void emitInstruction(int pc, int i) {
+		MethodVisitor mv = this.mv;
+		int a = GETARG_A(i);
+
+		switch (GET_OPCODE(i)) {
+			case OP_MOVE -> { // A B: R(A):= R(B)
+				beginStore(a);
+				loadRegister(GETARG_B(i));
+				mv.visitInsn(AASTORE);
+			}
+
+			case OP_LOADK -> { // A Bx: R(A):= Kst(Bx)
+				beginStore(a);
+				loadConstant(GETARG_Bx(i));
+				mv.visitInsn(AASTORE);
+			}
+
+			case OP_LOADKX -> { // A: R(A) := Kst(extra arg)
+				beginStore(a);
+				loadConstant(GETARG_Ax(code[pc + 1]));
+				mv.visitInsn(AASTORE);
+			}
+
+			case OP_LOADBOOL -> { // A B C: R(A):= (Bool)B: if (C) pc++
+				beginStore(a);
+				mv.visitFieldInsn(GETSTATIC, CONSTANTS, GETARG_B(i) != 0 ? "TRUE" : "FALSE", D_BOOLEAN);
+				mv.visitInsn(AASTORE);
+				if (GETARG_C(i) != 0) jumpTo(pc, pc + 2);
+			}
+
+			case OP_LOADNIL -> { // A B: R(A), R(A+1), ..., R(A+B) := nil
+				for (int r = a, end = a + GETARG_B(i); r <= end; r++) {
+					beginStore(r);
+					mv.visitFieldInsn(GETSTATIC, CONSTANTS, "NIL", D_VALUE);
+					mv.visitInsn(AASTORE);
+				}
+			}
+
+			case OP_GETUPVAL -> { // A B: R(A):= UpValue[B]
+				beginStore(a);
+				loadUpvalue(GETARG_B(i));
+				mv.visitInsn(AASTORE);
+			}
+
+			case OP_GETTABUP -> { // A B C: R(A) := UpValue[B][RK(C)]
+				int b = GETARG_B(i);
+				if (!pending.isEmpty()) {
+					getTableUnboxed(pc, i, true);
+					break;
+				}
+
+				setPc(pc);
+				beginStore(a);
+				mv.visitVarInsn(ALOAD, LUA_STATE);
+				loadUpvalue(b);
+				getTable(pc, GETARG_C(i), -b - 1);
+				mv.visitInsn(AASTORE);
+			}
+
+			case OP_GETTABLE -> { // A B C: R(A):= R(B)[RK(C)]
+				int b = GETARG_B(i);
+				if (!pending.isEmpty()) {
+					getTableUnboxed(pc, i, false);
+					break;
+				}
+
+				setPc(pc);
+				beginStore(a);
+				mv.visitVarInsn(ALOAD, LUA_STATE);
+				loadRegister(b);
+				getTable(pc, GETARG_C(i), b);
+				mv.visitInsn(AASTORE);
+			}
+
+			case OP_SETTABUP -> { // A B C: UpValue[A][RK(B)] := RK(C)
+				int b = GETARG_B(i);
+				setPc(pc);
+				mv.visitVarInsn(ALOAD, LUA_STATE);
+				loadUpvalue(a);
+				loadRK(b);
+				loadRK(GETARG_C(i));
+				pushInt(-b - 1);
+				mv.visitMethodInsn(INVOKESTATIC, OPERATION, "setTable", SET_TABLE, false);
+			}
+
+			case OP_SETUPVAL -> { // A B: UpValue[B]:= R(A)
+				mv.visitVarInsn(ALOAD, UPVALUES);
+				pushInt(GETARG_B(i));
+				mv.visitInsn(AALOAD);
+				loadRegister(a);
+				mv.visitMethodInsn(INVOKEVIRTUAL, UPVALUE, "setValue", "(" + D_VALUE + ")V", false);
+			}
+
+			case OP_SETTABLE -> { // A B C: R(A)[RK(B)]:= RK(C)
+				setPc(pc);
+				mv.visitVarInsn(ALOAD, LUA_STATE);
+				loadRegister(a);
+				loadRK(GETARG_B(i));
+				loadRK(GETARG_C(i));
+				pushInt(a);
+				mv.visitMethodInsn(INVOKESTATIC, OPERATION, "setTable", SET_TABLE, false);
+			}
+
+			case OP_NEWTABLE -> { // A B C: R(A):= {} (size = B,C)
+				beginStore(a);
+				mv.visitVarInsn(ALOAD, LUA_STATE);
+				mv.visitVarInsn(ALOAD, THIS);
+				mv.visitFieldInsn(GETFIELD, SUPER, "tableSites", Type.getDescriptor(TableSite[].class));
+				pushInt(pc);
+				mv.visitInsn(AALOAD);
+				pushInt(i);
+				mv.visitMethodInsn(INVOKESTATIC, INTERPRETER, "newTable", "(" + Type.getDescriptor(LuaState.class) + Type.getDescriptor(TableSite.class) + "I)" + Type.getDescriptor(LuaTable.class), false);
+				mv.visitInsn(AASTORE);
+			}
+
+			case OP_SELF -> { // A B C: R(A+1):= R(B): R(A):= R(B)[RK(C)]
+				int b = GETARG_B(i);
+				setPc(pc);
+				beginStore(a + 1);
+				loadRegister(b);
+				mv.visitInsn(AASTORE);
+
+				beginStore(a);
+				mv.visitVarInsn(ALOAD, LUA_STATE);
+				loadRegister(a + 1);
+				getTable(pc, GETARG_C(i), b);
+				mv.visitInsn(AASTORE);
+			}
+
+			case OP_ADD, OP_SUB, OP_MUL, OP_DIV, OP_MOD, OP_POW, OP_UNM -> {
+				if (numeric.unboxed[pc] || isPending(GETARG_B(i)) || (GET_OPCODE(i) != OP_UNM && isPending(GETARG_C(i)))) {
+					arithmeticUnboxed(pc, i);
+				} else {
+					arithmetic(pc, i);
+				}
+			}
+
+			case OP_NOT -> { // A B: R(A):= not R(B)
+				Label isFalse = new Label(), store = new Label();
+				beginStore(a);
+				loadRegister(GETARG_B(i));
+				mv.visitMethodInsn(INVOKEVIRTUAL, VALUE, "toBoolean", "()Z", false);
+				mv.visitJumpInsn(IFEQ, isFalse);
+				mv.visitFieldInsn(GETSTATIC, CONSTANTS, "FALSE", D_BOOLEAN);
+				mv.visitJumpInsn(GOTO, store);
+				mv.visitLabel(isFalse);
+				mv.visitFieldInsn(GETSTATIC, CONSTANTS, "TRUE", D_BOOLEAN);
+				mv.visitLabel(store);
+				mv.visitInsn(AASTORE);
+			}
+
+			case OP_LEN -> { // A B: R(A):= length of R(B)
+				setPc(pc);
+				beginStore(a);
+				mv.visitVarInsn(ALOAD, LUA_STATE);
+				loadRegister(GETARG_B(i));
+				mv.visitMethodInsn(INVOKESTATIC, OPERATION, "length", UNARY, false);
+				mv.visitInsn(AASTORE);
+			}
+
+			case OP_CONCAT -> { // A B C: R(A):= R(B).. ... ..R(C)
+				setPc(pc);
+				mv.visitVarInsn(ALOAD, LUA_STATE);
+				mv.visitVarInsn(ALOAD, DI);
+				mv.visitVarInsn(ALOAD, STACK);
+				pushInt(i);
+				mv.visitMethodInsn(INVOKESTATIC, INTERPRETER, "concat", "(" + Type.getDescriptor(LuaState.class) + Type.getDescriptor(DebugFrame.class) + D_VALUES + "I)V", false);
+			}
+
+			case OP_JMP -> jump(pc, i, pc + 1 + GETARG_sBx(i));
+
+			case OP_EQ -> compare(pc, i, "eq");
+			case OP_LT -> compare(pc, i, "lt");
+			case OP_LE -> compare(pc, i, "le");
+
+			case OP_TEST -> { // A C: if not (R(A) <=> C) then pc++
+				Label skip = new Label();
+				loadRegister(a);
+				mv.visitMethodInsn(INVOKEVIRTUAL, VALUE, "toBoolean", "()Z", false);
+				mv.visitJumpInsn(GETARG_C(i) != 0 ? IFEQ : IFNE, skip);
+				conditionalJump(pc);
+				mv.visitLabel(skip);
+				jumpTo(pc, pc + 2);
+			}
+
+			case OP_TESTSET -> { // A B C: if (R(B) <=> C) then R(A):= R(B) else pc++
+				int b = GETARG_B(i);
+				Label skip = new Label();
+				loadRegister(b);
+				mv.visitMethodInsn(INVOKEVIRTUAL, VALUE, "toBoolean", "()Z", false);
+				mv.visitJumpInsn(GETARG_C(i) != 0 ? IFEQ : IFNE, skip);
+				beginStore(a);
+				loadRegister(b);
+				mv.visitInsn(AASTORE);
+				conditionalJump(pc);
+				mv.visitLabel(skip);
+				jumpTo(pc, pc + 2);
+			}
+
+			case OP_CALL -> { // A B C: R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1))
+				Label next = new Label();
+				setPc(pc);
+				useInstructions(pc);
+
+				int b = GETARG_B(i), c = GETARG_C(i);
+				if (b >= 1 && b <= 4 && (c == 1 || c == 2)) {
+					// For calls with a fixed number of arguments and results, call native functions directly,
+					// without going through the generic call logic.
+					Label generic = new Label();
+					loadRegister(a);
+					mv.visitInsn(DUP);
+					mv.visitVarInsn(ASTORE, CALLEE);
+					mv.visitTypeInsn(INSTANCEOF, FUNCTION);
+					mv.visitJumpInsn(IFNE, generic);
+
+					if (c == 2) beginStore(a);
+					mv.visitVarInsn(ALOAD, LUA_STATE);
+					mv.visitVarInsn(ALOAD, CALLEE);
+					for (int arg = 1; arg < b; arg++) loadRegister(a + arg);
+					pushInt(a);
+					mv.visitMethodInsn(INVOKESTATIC, DISPATCH, "call", "(" + Type.getDescriptor(LuaState.class) + D_VALUE + D_VALUE.repeat(b - 1) + "I)" + D_VALUE, false);
+					mv.visitInsn(c == 2 ? AASTORE : POP);
+					mv.visitJumpInsn(GOTO, next);
+
+					mv.visitLabel(generic);
+				}
+
+				call("call", i);
+				mv.visitJumpInsn(IFEQ, next);
+				mv.visitInsn(ACONST_NULL);
+				mv.visitInsn(ARETURN);
+				mv.visitLabel(next);
+				pushInt(pc + 1);
+				safepoint(0);
+			}
+
+			case OP_TAILCALL -> { // A B C: return R(A)(R(A+1), ... ,R(A+B-1))
+				Label next = new Label();
+				setPc(pc);
+				useInstructions(pc);
+				call("tailCall", i);
+				mv.visitJumpInsn(IFEQ, next);
+				mv.visitInsn(ACONST_NULL);
+				mv.visitInsn(ARETURN);
+				mv.visitLabel(next);
+			}
+
+			case OP_RETURN -> { // A B: return R(A), ... ,R(A+B-2) (see note)
+				setPc(pc);
+				useInstructions(pc);
+
+				Label slow = new Label();
+				mv.visitVarInsn(ALOAD, DS);
+				mv.visitVarInsn(ALOAD, DI);
+				mv.visitVarInsn(ALOAD, STACK);
+				pushInt(i);
+				mv.visitMethodInsn(INVOKESTATIC, INTERPRETER, "returnDirect", "(" + Type.getDescriptor(DebugState.class) + Type.getDescriptor(DebugFrame.class) + D_VALUES + "I)Z", false);
+				mv.visitJumpInsn(IFEQ, slow);
+				mv.visitInsn(ACONST_NULL);
+				mv.visitInsn(ARETURN);
+				mv.visitLabel(slow);
+
+				mv.visitVarInsn(ALOAD, DI);
+				mv.visitVarInsn(ALOAD, STACK);
+				pushInt(i);
+				mv.visitMethodInsn(INVOKESTATIC, INTERPRETER, "ret", "(" + Type.getDescriptor(DebugFrame.class) + D_VALUES + "I)" + D_VARARGS, false);
+				mv.visitInsn(ARETURN);
+			}
+
+			case OP_FORLOOP -> { // A sBx: R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }
+				Label exit = new Label();
+				setPc(pc);
+				mv.visitVarInsn(ALOAD, LUA_STATE);
+				mv.visitVarInsn(ALOAD, STACK);
+				pushInt(a);
+				mv.visitMethodInsn(INVOKESTATIC, INTERPRETER, "forLoop", "(" + Type.getDescriptor(LuaState.class) + D_VALUES + "I)Z", false);
+				mv.visitJumpInsn(IFEQ, exit);
+				jumpTo(pc, pc + 1 + GETARG_sBx(i));
+				mv.visitLabel(exit);
+			}
+
+			case OP_FORPREP -> { // A sBx: R(A)-=R(A+2): pc+=sBx
+				setPc(pc);
+				mv.visitVarInsn(ALOAD, LUA_STATE);
+				mv.visitVarInsn(ALOAD, STACK);
+				pushInt(a);
+				mv.visitMethodInsn(INVOKESTATIC, INTERPRETER, "forPrep", "(" + Type.getDescriptor(LuaState.class) + D_VALUES + "I)V", false);
+				jumpTo(pc, pc + 1 + GETARG_sBx(i));
+			}
+
+			case OP_TFORCALL -> {
+				setPc(pc);
+				mv.visitVarInsn(ALOAD, LUA_STATE);
+				mv.visitVarInsn(ALOAD, STACK);
+				pushInt(i);
+				mv.visitMethodInsn(INVOKESTATIC, INTERPRETER, "tforCall", "(" + Type.getDescriptor(LuaState.class) + D_VALUES + "I)V", false);
+				// Fall through to OP_TFORLOOP
+			}
+
+			case OP_TFORLOOP -> {
+				Label exit = new Label();
+				loadRegister(a + 1);
+				mv.visitMethodInsn(INVOKEVIRTUAL, VALUE, "isNil", "()Z", false);
+				mv.visitJumpInsn(IFNE, exit);
+				beginStore(a);
+				loadRegister(a + 1);
+				mv.visitInsn(AASTORE);
+				jumpTo(pc, pc + 1 + GETARG_sBx(i));
+				mv.visitLabel(exit);
+			}
+
+			case OP_SETLIST -> { // A B C: R(A)[(C-1)*FPF+i]:= R(A+i), 1 <= i <= B
+				int c = GETARG_C(i);
+				if (c == 0) c = GETARG_Ax(code[pc + 1]);
+
+				setPc(pc);
+				mv.visitVarInsn(ALOAD, LUA_STATE);
+				mv.visitVarInsn(ALOAD, DI);
+				mv.visitVarInsn(ALOAD, STACK);
+				pushInt(i);
+				pushInt(c);
+				mv.visitMethodInsn(INVOKESTATIC, INTERPRETER, "setList", "(" + Type.getDescriptor(LuaState.class) + Type.getDescriptor(DebugFrame.class) + D_VALUES + "II)V", false);
+			}
+
+			case OP_CLOSURE -> { // A Bx: R(A):= closure(KPROTO[Bx], R(A), ... ,R(A+n))
+				beginStore(a);
+				mv.visitVarInsn(ALOAD, LUA_STATE);
+				mv.visitVarInsn(ALOAD, DI);
+				mv.visitVarInsn(ALOAD, CLOSURE);
+				pushInt(i);
+				mv.visitMethodInsn(INVOKESTATIC, INTERPRETER, "closure", "(" + Type.getDescriptor(LuaState.class) + Type.getDescriptor(DebugFrame.class) + Type.getDescriptor(LuaInterpretedFunction.class) + "I)" + Type.getDescriptor(LuaInterpretedFunction.class), false);
+				mv.visitInsn(AASTORE);
+			}
+
+			case OP_VARARG -> { // A B: R(A), R(A+1), ..., R(A+B-1) = vararg
+				mv.visitVarInsn(ALOAD, DI);
+				mv.visitVarInsn(ALOAD, STACK);
+				mv.visitVarInsn(ALOAD, VARARGS);
+				pushInt(i);
+				mv.visitMethodInsn(INVOKESTATIC, INTERPRETER, "vararg", "(" + Type.getDescriptor(DebugFrame.class) + D_VALUES + D_VARARGS + "I)V", false);
+			}
+
+			case OP_EXTRAARG -> {
+				// Consumed by the previous instruction.
+			}
+
+			default -> throw new IllegalStateException("Unknown opcode " + GET_OPCODE(i));
+		}
+	}
+
+	private void arithmetic(int pc, int i) {
+		setPc(pc);
+		beginStore(GETARG_A(i));
+		mv.visitVarInsn(ALOAD, LUA_STATE);
+		loadRK(GETARG_B(i));
+		switch (GET_OPCODE(i)) {
+			case OP_UNM -> mv.visitMethodInsn(INVOKESTATIC, OPERATION, "neg", UNARY, false);
+			case OP_ADD -> binary(i, "add");
+			case OP_SUB -> binary(i, "sub");
+			case OP_MUL -> binary(i, "mul");
+			case OP_DIV -> binary(i, "div");
+			case OP_MOD -> binary(i, "mod");
+			case OP_POW -> binary(i, "pow");
+			default -> throw new IllegalStateException("Unknown opcode " + GET_OPCODE(i));
+		}
+		mv.visitInsn(AASTORE);
+	}
+
+	private void binary(int i, String name) {
+		loadRK(GETARG_C(i));
+		mv.visitMethodInsn(INVOKESTATIC, OPERATION, name, BINARY, false);
+	}
+
+	/**
+	 * Emit an arithmetic instruction which produces or consumes an unboxed value. If both operands are numbers, this
+	 * performs the operation on {@code double}s directly. Otherwise, we spill any unboxed registers and fall back to
+	 * {@link #arithmetic(int, int)}.
+	 *
+	 * @param pc The current program counter.
+	 * @param i  The current instruction.
+	 */
+	private void arithmeticUnboxed(int pc, int i) {
+		int op = GET_OPCODE(i), a = GETARG_A(i);
+		Label slow = new Label(), done = new Label();
+
+		loadNumber(GETARG_B(i), TEMP_LEFT, slow);
+		if (op != OP_UNM) loadNumber(GETARG_C(i), TEMP_RIGHT, slow);
+
+		mv.visitVarInsn(DLOAD, TEMP_LEFT);
+		if (op != OP_UNM) mv.visitVarInsn(DLOAD, TEMP_RIGHT);
+		switch (op) {
+			case OP_ADD -> mv.visitInsn(DADD);
+			case OP_SUB -> mv.visitInsn(DSUB);
+			case OP_MUL -> mv.visitInsn(DMUL);
+			case OP_DIV -> mv.visitMethodInsn(INVOKESTATIC, OPERATION, "div", "(DD)D", false);
+			case OP_MOD -> mv.visitMethodInsn(INVOKESTATIC, OPERATION, "mod", "(DD)D", false);
+			case OP_POW -> mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "pow", "(DD)D", false);
+			case OP_UNM -> mv.visitInsn(DNEG);
+			default -> throw new IllegalStateException("Unknown opcode " + op);
+		}
+		// Boxing converts -0.0 to 0 (see LuaDouble.valueOf), so do the same for unboxed values.
+		mv.visitInsn(DCONST_0);
+		mv.visitInsn(DADD);
+
+		if (numeric.unboxed[pc]) {
+			mv.visitVarInsn(DSTORE, UNBOXED + 2 * a);
+		} else {
+			mv.visitVarInsn(DSTORE, TEMP_LEFT);
+			beginStore(a);
+			mv.visitVarInsn(DLOAD, TEMP_LEFT);
+			mv.visitMethodInsn(INVOKESTATIC, DOUBLE, "valueOf", "(D)" + Type.getDescriptor(LuaNumber.class), false);
+			mv.visitInsn(AASTORE);
+		}
+		mv.visitJumpInsn(GOTO, done);
+
+		// One of the operands is not a number, and so this may invoke a metamethod.
+		mv.visitLabel(slow);
+		spill();
+		arithmetic(pc, i);
+		if (numeric.unboxed[pc]) {
+			Label deoptimise = new Label();
+			loadRegister(a);
+			mv.visitVarInsn(ASTORE, TEMP_VALUE);
+			mv.visitVarInsn(ALOAD, TEMP_VALUE);
+			mv.visitTypeInsn(INSTANCEOF, NUMBER);
+			mv.visitJumpInsn(IFEQ, deoptimise);
+			mv.visitVarInsn(ALOAD, TEMP_VALUE);
+			mv.visitMethodInsn(INVOKEVIRTUAL, VALUE, "toDouble", "()D", false);
+			mv.visitVarInsn(DSTORE, UNBOXED + 2 * a);
+			mv.visitJumpInsn(GOTO, done);
+
+			// The metamethod returned something other than a number. All registers have been spilled, so continue
+			// running this function in the interpreter.
+			mv.visitLabel(deoptimise);
+			setPc(pc + 1);
+			mv.visitFieldInsn(GETSTATIC, SUPER, "INTERPRET", D_VARARGS);
+			mv.visitInsn(ARETURN);
+		}
+
+		mv.visitLabel(done);
+	}
+
+	/**
+	 * Load an arithmetic operand as a {@code double}, jumping to {@code slow} if it is not a number.
+	 *
+	 * @param rk   The register or constant to load.
+	 * @param slot The local variable slot to store the number in.
+	 * @param slow The label to jump to if the operand is not a number.
+	 */
+	private void loadNumber(int rk, int slot, Label slow) {
+		if (isPending(rk)) {
+			mv.visitVarInsn(DLOAD, UNBOXED + 2 * rk);
+		} else if (ISK(rk) && constants[INDEXK(rk)] instanceof LuaNumber number) {
+			mv.visitLdcInsn(number.toDouble());
+		} else {
+			loadRK(rk);
+			mv.visitVarInsn(ASTORE, TEMP_VALUE);
+			mv.visitVarInsn(ALOAD, TEMP_VALUE);
+			mv.visitTypeInsn(INSTANCEOF, NUMBER);
+			mv.visitJumpInsn(IFEQ, slow);
+			mv.visitVarInsn(ALOAD, TEMP_VALUE);
+			mv.visitMethodInsn(INVOKEVIRTUAL, VALUE, "toDouble", "()D", false);
+		}
+		mv.visitVarInsn(DSTORE, slot);
+	}
+
+	private boolean isPending(int rk) {
+		return !ISK(rk) && pending.get(rk);
+	}
+
+	/**
+	 * Box all unboxed registers, and write them to the register array. This must be done before anything which may
+	 * call Lua code (and so yield, or inspect this function's registers).
+	 */
+	private void spill() {
+		for (int r = pending.nextSetBit(0); r >= 0; r = pending.nextSetBit(r + 1)) {
+			beginStore(r);
+			mv.visitVarInsn(DLOAD, UNBOXED + 2 * r);
+			mv.visitMethodInsn(INVOKESTATIC, DOUBLE, "valueOf", "(D)" + Type.getDescriptor(LuaNumber.class), false);
+			mv.visitInsn(AASTORE);
+		}
+	}
+
+	/**
+	 * Index a table while there are unboxed registers. We first try to index the table without invoking any
+	 * metamethods, only spilling registers and performing a full lookup if that fails.
+	 *
+	 * @param pc      The current program counter.
+	 * @param i       The current instruction.
+	 * @param upvalue Whether this is {@link Lua#OP_GETTABUP}, rather than {@link Lua#OP_GETTABLE}.
+	 */
+	private void getTableUnboxed(int pc, int i, boolean upvalue) {
+		int a = GETARG_A(i), b = GETARG_B(i), key = GETARG_C(i);
+		Label slow = new Label(), done = new Label();
+
+		if (upvalue) {
+			loadUpvalue(b);
+		} else {
+			loadRegister(b);
+		}
+		loadRK(key);
+		if (ISK(key) && constants[INDEXK(key)] instanceof LuaString) {
+			mv.visitTypeInsn(CHECKCAST, Type.getInternalName(LuaString.class));
+			mv.visitVarInsn(ALOAD, THIS);
+			mv.visitFieldInsn(GETFIELD, SUPER, "indexCache", "[I");
+			pushInt(pc);
+			mv.visitMethodInsn(INVOKESTATIC, OPERATION, "tryGetTable", TRY_GET_TABLE_CACHED, false);
+		} else {
+			mv.visitMethodInsn(INVOKESTATIC, OPERATION, "tryGetTable", TRY_GET_TABLE, false);
+		}
+		mv.visitInsn(DUP);
+		mv.visitJumpInsn(IFNULL, slow);
+		mv.visitVarInsn(ASTORE, TEMP_VALUE);
+		beginStore(a);
+		mv.visitVarInsn(ALOAD, TEMP_VALUE);
+		mv.visitInsn(AASTORE);
+		mv.visitJumpInsn(GOTO, done);
+
+		mv.visitLabel(slow);
+		mv.visitInsn(POP);
+		spill();
+		setPc(pc);
+		beginStore(a);
+		mv.visitVarInsn(ALOAD, LUA_STATE);
+		if (upvalue) {
+			loadUpvalue(b);
+		} else {
+			loadRegister(b);
+		}
+		getTable(pc, key, upvalue ? -b - 1 : b);
+		mv.visitInsn(AASTORE);
+
+		mv.visitLabel(done);
+	}
+
+	private void compare(int pc, int i, String name) {
+		Label skip = new Label();
+		setPc(pc);
+		mv.visitVarInsn(ALOAD, LUA_STATE);
+		loadRK(GETARG_B(i));
+		loadRK(GETARG_C(i));
+		mv.visitMethodInsn(INVOKESTATIC, OPERATION, name, COMPARE, false);
+		mv.visitJumpInsn(GETARG_A(i) != 0 ? IFEQ : IFNE, skip);
+		conditionalJump(pc);
+		mv.visitLabel(skip);
+		jumpTo(pc, pc + 2);
+	}
+
+	private void call(String name, int i) {
+		mv.visitVarInsn(ALOAD, LUA_STATE);
+		mv.visitVarInsn(ALOAD, DS);
+		mv.visitVarInsn(ALOAD, DI);
+		mv.visitVarInsn(ALOAD, STACK);
+		pushInt(i);
+		mv.visitMethodInsn(INVOKESTATIC, INTERPRETER, name, CALL, false);
+	}
+
+	/**
+	 * Emit the jump for a conditional instruction, assuming the next instruction is an {@link Lua#OP_JMP}.
+	 *
+	 * @param pc The current instruction.
+	 */
+	private void conditionalJump(int pc) {
+		int jump = code[pc + 1];
+		jump(pc, jump, pc + 2 + GETARG_sBx(jump));
+	}
+
+	private void jump(int pc, int jump, int target) {
+		int a = GETARG_A(jump);
+		if (a > 0) {
+			mv.visitVarInsn(ALOAD, DI);
+			pushInt(a - 1);
+			mv.visitMethodInsn(INVOKEVIRTUAL, FRAME, "closeUpvalues", "(I)V", false);
+		}
+		jumpTo(pc, target);
+	}
+
+	/**
+	 * Jump to another instruction, charging the current block to the instruction budget. Backwards jumps also check
+	 * for interrupts and an exhausted budget.
+	 * <p>
+	 * This does not end the current block, as conditional jumps may still fall through to the next instruction.
+	 *
+	 * @param pc     The current instruction.
+	 * @param target The instruction to jump to. This must be one of the {@linkplain #findJumpTargets() jump targets}.
+	 */
+	private void jumpTo(int pc, int target) {
+		if (target <= pc) {
+			pushInt(target);
+			safepoint(blockCost(pc));
+		} else {
+			chargeInstructions(blockCost(pc));
+		}
+		mv.visitJumpInsn(GOTO, labels[target]);
+	}
+
+	/**
+	 * End the current block, charging its instructions to the instruction budget without checking if it has been
+	 * exhausted. This is used before leaving the compiled code or reaching a jump target, and so the next safepoint
+	 * will handle an exhausted budget instead.
+	 *
+	 * @param pc The last instruction in this block.
+	 */
+	private void useInstructions(int pc) {
+		int executed = blockCost(pc);
+		blockStart = pc + 1;
+		chargeInstructions(executed);
+	}
+
+	/**
+	 * Get the number of instructions in the current block, up to and including {@code pc}.
+	 *
+	 * @param pc The last instruction in this block.
+	 * @return The number of instructions to charge.
+	 */
+	private int blockCost(int pc) {
+		return pc < blockStart ? 0 : dispatched[pc + 1] - dispatched[blockStart];
+	}
+
+	private void chargeInstructions(int executed) {
+		if (executed <= 0) return;
+
+		mv.visitVarInsn(ALOAD, LUA_STATE);
+		pushInt(executed);
+		mv.visitMethodInsn(INVOKEVIRTUAL, STATE, "useInstructions", "(I)Z", false);
+		mv.visitInsn(POP);
+	}
+
+	/**
+	 * Check for interrupts, hooks and the instruction budget. This expects the next program counter to be on the
+	 * stack.
+	 *
+	 * @param executed The number of instructions to charge to the instruction budget.
+	 */
+	private void safepoint(int executed) {
+		Label slow = new Label(), resume = new Label();
+		mv.visitVarInsn(ALOAD, LUA_STATE);
+		mv.visitMethodInsn(INVOKEVIRTUAL, STATE, "isInterrupted", "()Z", false);
+		mv.visitVarInsn(ALOAD, DS);
+		mv.visitMethodInsn(INVOKEVIRTUAL, DEBUG_STATE, "hasInstructionHook", "()Z", false);
+		mv.visitInsn(IOR);
+		mv.visitVarInsn(ALOAD, LUA_STATE);
+		pushInt(executed);
+		mv.visitMethodInsn(INVOKEVIRTUAL, STATE, "useInstructions", "(I)Z", false);
+		mv.visitInsn(IOR);
+		mv.visitJumpInsn(IFNE, slow);
+		mv.visitInsn(POP);
+		mv.visitJumpInsn(GOTO, resume);
+
+		mv.visitLabel(slow);
+		mv.visitVarInsn(ISTORE, NEXT_PC);
+		mv.visitVarInsn(ALOAD, LUA_STATE);
+		mv.visitVarInsn(ALOAD, DS);
+		mv.visitVarInsn(ALOAD, DI);
+		mv.visitVarInsn(ILOAD, NEXT_PC);
+		mv.visitMethodInsn(INVOKESTATIC, SUPER, "safepoint", SAFEPOINT, false);
+		mv.visitJumpInsn(IFEQ, resume);
+		mv.visitFieldInsn(GETSTATIC, SUPER, "INTERPRET", D_VARARGS);
+		mv.visitInsn(ARETURN);
+
+		mv.visitLabel(resume);
+	}
+
+	private void setPc(int pc) {
+		mv.visitVarInsn(ALOAD, DI);
+		pushInt(pc);
+		mv.visitFieldInsn(PUTFIELD, FRAME, "pc", "I");
+	}
+
+	private void beginStore(int register) {
+		mv.visitVarInsn(ALOAD, STACK);
+		pushInt(register);
+	}
+
+	private void loadRegister(int register) {
+		mv.visitVarInsn(ALOAD, STACK);
+		pushInt(register);
+		mv.visitInsn(AALOAD);
+	}
+
+	/**
+	 * Index the value on the top of the stack, using an inline cache if the key is a constant string.
+	 *
+	 * @param pc    The current program counter.
+	 * @param key   The register or constant holding the key.
+	 * @param stack The stack slot to report in error messages.
+	 */
+	private void getTable(int pc, int key, int stack) {
+		loadRK(key);
+		if (ISK(key) && constants[INDEXK(key)] instanceof LuaString) {
+			mv.visitTypeInsn(CHECKCAST, Type.getInternalName(LuaString.class));
+			pushInt(stack);
+			mv.visitVarInsn(ALOAD, THIS);
+			mv.visitFieldInsn(GETFIELD, SUPER, "indexCache", "[I");
+			pushInt(pc);
+			mv.visitMethodInsn(INVOKESTATIC, OPERATION, "getTable", GET_TABLE_CACHED, false);
+		} else {
+			pushInt(stack);
+			mv.visitMethodInsn(INVOKESTATIC, OPERATION, "getTable", GET_TABLE, false);
+		}
+	}
+
+	private void loadConstant(int constant) {
+		mv.visitVarInsn(ALOAD, K);
+		pushInt(constant);
+		mv.visitInsn(AALOAD);
+	}
+
+	private void loadRK(int slot) {
+		if (ISK(slot)) {
+			loadConstant(INDEXK(slot));
+		} else {
+			loadRegister(slot);
+		}
+	}
+
+	private void loadUpvalue(int upvalue) {
+		mv.visitVarInsn(ALOAD, UPVALUES);
+		pushInt(upvalue);
+		mv.visitInsn(AALOAD);
+		mv.visitMethodInsn(INVOKEVIRTUAL, UPVALUE, "getValue", "()" + D_VALUE, false);
+	}
+
+	private void pushInt(int value) {
+		if (value >= -1 && value <= 5) {
+			mv.visitInsn(ICONST_0 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			mv.visitIntInsn(BIPUSH, value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			mv.visitIntInsn(SIPUSH, value);
+		} else {
+			mv.visitLdcInsn(value);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package org.figuramc.figura_cobalt.org.squiddev.cobalt.function;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.figuramc.figura_cobalt.LuaUncatchableError;
+import org.figuramc.figura_cobalt.org.squiddev.cobalt.*;
+import org.figuramc.figura_cobalt.org.squiddev.cobalt.debug.DebugFrame;
+import org.figuramc.figura_cobalt.org.squiddev.cobalt.debug.DebugState;
+
+/**
+ * The compiled form of a {@link Prototype}, generated by the {@link BaselineCompiler}.
+ * <p>
+ * Compiled code is a direct translation of the Lua bytecode into a single JVM method. It shares the register array and
+ * {@link DebugFrame} layout with {@link LuaInterpreter}, which means execution can move between the two at any point
+ * where the interpreter could also stop: function entry, backwards jumps and after any instruction which may yield.
+ *
+ * @see BaselineCompiler
+ * @see BytecodeEmitter
+ */
+public abstract class CompiledFunction {
+	/**
+	 * Returned from {@link #execute(LuaState, DebugState, DebugFrame, LuaInterpretedFunction)} when the current frame
+	 * should continue to be executed by the interpreter.
+	 */
+	static final Varargs INTERPRET = ValueFactory.varargsOf(Constants.NIL, Constants.NIL);
+
+	final Prototype prototype;
+	final LuaValue[] constants;
+	final int[] indexCache;
+	final @Nullable TableSite[] tableSites;
+
+	CompiledFunction(Prototype prototype) {
+		this.prototype = prototype;
+		this.constants = prototype.constants;
+		this.indexCache = prototype.indexCache;
+		this.tableSites = prototype.tableSites;
+	}
+
+	/**
+	 * Execute this function, starting at the current {@linkplain DebugFrame#pc program counter}.
+	 *
+	 * @param state    The current Lua state.
+	 * @param ds       The current debug state.
+	 * @param di       The frame for this function. This must be the top of the stack.
+	 * @param function The function being executed.
+	 * @return The values returned by this function, {@code null} if the top frame has changed (a new Lua frame was
+	 * pushed, or this function returned directly into its caller) and so should be executed, or {@link #INTERPRET} if
+	 * the interpreter should continue executing this frame.
+	 * @throws LuaError        If the function errored.
+	 * @throws UnwindThrowable If the function yielded.
+	 */
+	abstract Varargs execute(LuaState state, DebugState ds, DebugFrame di, LuaInterpretedFunction function) throws LuaError, LuaUncatchableError, UnwindThrowable;
+
+	/**
+	 * Slow path of the interrupt, instruction budget and hook checks performed by compiled code on function entry,
+	 * backwards jumps and after calls.
+	 *
+	 * @param state The current Lua state.
+	 * @param ds    The current debug state.
+	 * @param di    The frame for this function.
+	 * @param pc    The next instruction to execute.
+	 * @return Whether the compiled code should stop and return {@link #INTERPRET}.
+	 * @throws LuaError        If the interrupt handler errored, or the instruction budget was exhausted.
+	 * @throws UnwindThrowable If the interrupt handler suspended the VM.
+	 */
+	static boolean safepoint(LuaState state, DebugState ds, DebugFrame di, int pc) throws LuaError, LuaUncatchableError, UnwindThrowable {
+		di.pc = pc;
+		if (ds.hasInstructionHook()) return true;
+		if (state.isInterrupted()) state.handleInterrupt();
+		if (state.useInstructions(0)) state.handleBudgetExhausted();
+		return false;
+	}
+}
@@ -75,6 +75,7 @@ public final class Dispatch {
 			result = LuaInterpreter.execute(state, di, closure).first();
 		} else {
 			di.func = function;
+			if (ExecutionStatistics.ENABLED) state.statistics.onNativeCall();
 			try {
 				ds.onCall(di);
 			} catch (UnwindThrowable e) {
@@ -98,6 +99,7 @@ public final class Dispatch {
 			result = LuaInterpreter.execute(state, di, closure).first();
 		} else {
 			di.func = function;
+			if (ExecutionStatistics.ENABLED) state.statistics.onNativeCall();
 			try {
 				ds.onCall(di);
 			} catch (UnwindThrowable e) {
@@ -121,6 +123,7 @@ public final class Dispatch {
 			result = LuaInterpreter.execute(state, di, closure).first();
 		} else {
 			di.func = function;
+			if (ExecutionStatistics.ENABLED) state.statistics.onNativeCall();
 			try {
 				ds.onCall(di);
 			} catch (UnwindThrowable e) {
@@ -144,6 +147,7 @@ public final class Dispatch {
 			result = LuaInterpreter.execute(state, di, closure).first();
 		} else {
 			di.func = function;
+			if (ExecutionStatistics.ENABLED) state.statistics.onNativeCall();
 			try {
 				ds.onCall(di);
 			} catch (UnwindThrowable e) {
@@ -167,6 +171,7 @@ public final class Dispatch {
 			result = LuaInterpreter.execute(state, di, closure);
 		} else {
 			di.func = function;
+			if (ExecutionStatistics.ENABLED) state.statistics.onNativeCall();
 			try {
 				ds.onCall(di);
 			} catch (UnwindThrowable e) {
@@ -204,6 +209,7 @@ public final class Dispatch {
 			throw ErrorFactory.operandError(state, value, "call", stack);
 		}
 
+		if (ExecutionStatistics.ENABLED) state.statistics.onMetamethod();
 		return metaFunc;
 	}
 }
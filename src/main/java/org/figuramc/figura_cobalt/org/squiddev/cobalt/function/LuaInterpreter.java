@@ -30,6 +30,8 @@ import org.figuramc.figura_cobalt.org.squiddev.cobalt.debug.DebugFrame;
 import org.figuramc.figura_cobalt.org.squiddev.cobalt.debug.DebugState;
 import org.figuramc.figura_cobalt.org.squiddev.cobalt.debug.Upvalue;
 
+import java.lang.ref.WeakReference;
+
 import static org.figuramc.figura_cobalt.org.squiddev.cobalt.Constants.*;
 import static org.figuramc.figura_cobalt.org.squiddev.cobalt.Lua.*;
 import static org.figuramc.figura_cobalt.org.squiddev.cobalt.LuaDouble.valueOf;
@@ -42,21 +44,15 @@ final class LuaInterpreter {
 	private LuaInterpreter() {
 	}
 
-	private static LuaValue[] createStack(Prototype prototype) {
-		LuaValue[] stack = new LuaValue[prototype.maxStackSize];
-		System.arraycopy(NILS, 0, stack, 0, prototype.maxStackSize);
-		return stack;
-	}
-
 	public static void setupCall(DebugState ds, DebugFrame frame, LuaInterpretedFunction function, int flags) throws UnwindThrowable, LuaError, LuaUncatchableError {
 		Prototype p = function.p;
-		LuaValue[] stack = createStack(p);
+		LuaValue[] stack = frame.allocateStack(p.maxStackSize);
 		setupFrame(ds, frame, function, NONE, stack, flags);
 	}
 
 	public static void setupCall(DebugState ds, DebugFrame frame, LuaInterpretedFunction function, LuaValue arg, int flags) throws LuaError, LuaUncatchableError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = createStack(p);
+		LuaValue[] stack = frame.allocateStack(p.maxStackSize);
 
 		switch (p.parameters) {
 			case 0 -> setupFrame(ds, frame, function, arg, stack, flags);
@@ -69,7 +65,7 @@ final class LuaInterpreter {
 
 	public static void setupCall(DebugState ds, DebugFrame frame, LuaInterpretedFunction function, LuaValue arg1, LuaValue arg2, int flags) throws LuaError, LuaUncatchableError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = createStack(p);
+		LuaValue[] stack = frame.allocateStack(p.maxStackSize);
 
 		switch (p.parameters) {
 			case 0 -> {
@@ -89,7 +85,7 @@ final class LuaInterpreter {
 
 	public static void setupCall(DebugState ds, DebugFrame frame, LuaInterpretedFunction function, LuaValue arg1, LuaValue arg2, LuaValue arg3, int flags) throws LuaError, LuaUncatchableError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = createStack(p);
+		LuaValue[] stack = frame.allocateStack(p.maxStackSize);
 
 		switch (p.parameters) {
 			case 0 -> {
@@ -127,7 +123,7 @@ final class LuaInterpreter {
 
 	static void setupCall(DebugState ds, DebugFrame frame, LuaInterpretedFunction function, Varargs varargs, int flags) throws LuaError, LuaUncatchableError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = createStack(p);
+		LuaValue[] stack = frame.allocateStack(p.maxStackSize);
 		Varargs args = setupStack(p, stack, varargs);
 		setupFrame(ds, frame, function, args, stack, flags);
 	}
@@ -157,425 +153,433 @@ final class LuaInterpreter {
 
 	static Varargs execute(final LuaState state, DebugFrame di, LuaInterpretedFunction function) throws LuaError, LuaUncatchableError, UnwindThrowable {
 		final DebugState ds = DebugState.get(state);
+		final boolean precise = state.hasPreciseInterrupts();
+		final BaselineCompiler jit = !precise && !ExecutionStatistics.ENABLED && state.compiler instanceof BaselineCompiler compiler ? compiler : null;
+		boolean interpret = false;
 
-		newFrame:
-		while (true) {
-			// Fetch all info from the function
-			final Prototype p = function.p;
-			final Upvalue[] upvalues = function.upvalues;
-			final int[] code = p.code;
-			final LuaValue[] k = p.constants;
-
-			// And from the debug info
-			final LuaValue[] stack = di.stack;
-			final Varargs varargs = di.varargs;
+		// The number of instructions executed since the last safepoint.
+		int executed = 0;
 
-			int pc = di.pc;
+		// The instruction being timed by the interpreter which called us (via Java), restored when we exit.
+		int outerOpcode = ExecutionStatistics.TIMING ? state.statistics.pauseTiming() : -1;
 
-			// process instructions
+		try {
+			newFrame:
 			while (true) {
-				di.pc = pc;
-				if (state.isInterrupted()) state.handleInterrupt();
-				ds.onInstruction(di, pc);
-
-				// pull out instruction
-				int i = code[pc++];
-				int a = GETARG_A(i);
-
-				// process the instruction
-				switch (GET_OPCODE(i)) {
-					case OP_MOVE: // A B: R(A):= R(B)
-						stack[a] = stack[GETARG_B(i)];
-						break;
-
-					case OP_LOADK: // A Bx: R(A):= Kst(Bx)
-						stack[a] = k[GETARG_Bx(i)];
-						break;
-
-					case OP_LOADKX: { // A: R(A) := Kst(extra arg)
-						assert GET_OPCODE(code[pc]) == OP_EXTRAARG;
-						int rb = GETARG_Ax(code[pc++]);
-						stack[a] = k[rb];
-						break;
+				// Fetch all info from the function
+				final Prototype p = function.p;
+
+				// If this function has been compiled, run that instead. The compiled code hands control back to us when
+				// it calls (or tail calls) another Lua function, returns, or when it cannot continue (for instance, a debug
+				// hook has been installed).
+				CompiledFunction compiled;
+				if (!interpret && jit != null && (compiled = jit.onEnter(ds, di, p)) != null) {
+					Varargs ret = compiled.execute(state, ds, di, function);
+					if (ret == CompiledFunction.INTERPRET) {
+						interpret = true;
+					} else if (ret != null && (di.flags & FLAG_FRESH) != 0) {
+						return ret;
+					} else {
+						di = ret == null ? ds.getStackUnsafe() : returnTo(state, ds, di, ret);
+						function = (LuaInterpretedFunction) di.func;
 					}
+					continue;
+				}
+				interpret = false;
 
-					case OP_LOADBOOL: { // A B C: R(A):= (Bool)B: if (C) pc++
-						stack[a] = GETARG_B(i) != 0 ? TRUE : FALSE;
-						if (GETARG_C(i) != 0) pc++; // skip next instruction (if C)
-						break;
-					}
+				final Upvalue[] upvalues = function.upvalues;
+				final int[] code = p.code;
+				final LuaValue[] k = p.constants;
 
-					case OP_LOADNIL: { // A B     R(A), R(A+1), ..., R(A+B) := nil
-						int b = GETARG_B(i);
-						do {
-							stack[a++] = NIL;
-						} while (b-- > 0);
-						break;
-					}
+				// And from the debug info
+				final LuaValue[] stack = di.stack;
+				final Varargs varargs = di.varargs;
 
-					case OP_GETUPVAL: // A B: R(A):= UpValue[B]
-						stack[a] = upvalues[GETARG_B(i)].getValue();
-						break;
+				int pc = di.pc;
 
-					case OP_GETTABUP: {// A B C: R(A) := UpValue[B][RK(C)]
-						int b = GETARG_B(i);
-						int c = GETARG_C(i);
-						stack[a] = OperationHelper.getTable(state, upvalues[b].getValue(), getRK(stack, k, c), -b - 1);
-						break;
-					}
+				// Interrupts and debug hooks are only checked at safepoints: function entry and return, after calls and on
+				// backwards jumps. This guarantees we check within a bounded number of instructions, while avoiding a
+				// volatile read on every instruction.
+				boolean poll = true, hooked = false;
 
-					case OP_GETTABLE: { // A B C: R(A):= R(B)[RK(C)]
-						int b = GETARG_B(i);
-						int c = GETARG_C(i);
-						stack[a] = OperationHelper.getTable(state, stack[b], getRK(stack, k, c), b);
-						break;
-					}
+				// process instructions
+				while (true) {
+					di.pc = pc;
+					if (poll) {
+						poll = precise;
+						if (state.isInterrupted()) state.handleInterrupt();
 
-					case OP_SETTABUP: {// A B C: UpValue[A][RK(B)] := RK(C)
-						int b = GETARG_B(i);
-						int c = GETARG_C(i);
-						OperationHelper.setTable(state, upvalues[a].getValue(), getRK(stack, k, b), getRK(stack, k, c), -b - 1);
-						break;
-					}
-
-					case OP_SETUPVAL: // A B: UpValue[B]:= R(A)
-						upvalues[GETARG_B(i)].setValue(stack[a]);
-						break;
+						int count = executed;
+						executed = 0;
+						if (state.useInstructions(count)) state.handleBudgetExhausted();
 
-					case OP_SETTABLE: { // A B C: R(A)[RK(B)]:= RK(C)
-						int b = GETARG_B(i);
-						int c = GETARG_C(i);
-						OperationHelper.setTable(state, stack[a], getRK(stack, k, b), getRK(stack, k, c), a);
-						break;
+						hooked = ds.hasInstructionHook();
 					}
+					if (hooked) ds.onInstruction(di, pc);
+					executed++;
+
+					// pull out instruction
+					int i = code[pc++];
+					int a = GETARG_A(i);
+					if (ExecutionStatistics.ENABLED) state.statistics.onInstruction(GET_OPCODE(i));
+
+					// process the instruction
+					switch (GET_OPCODE(i)) {
+						case OP_MOVE: // A B: R(A):= R(B)
+							stack[a] = stack[GETARG_B(i)];
+							break;
 
-					case OP_NEWTABLE: // A B C: R(A):= {} (size = B,C)
-						stack[a] = new LuaTable(luaO_fb2int(GETARG_B(i)), luaO_fb2int(GETARG_C(i)), state.allocationTracker);
-						break;
+						case OP_LOADK: // A Bx: R(A):= Kst(Bx)
+							stack[a] = k[GETARG_Bx(i)];
+							break;
 
-					case OP_SELF: { // A B C: R(A+1):= R(B): R(A):= R(B)[RK(C)]
-						int b = GETARG_B(i);
-						int c = GETARG_C(i);
-						LuaValue o = stack[a + 1] = stack[b];
-						stack[a] = OperationHelper.getTable(state, o, getRK(stack, k, c), b);
-						break;
-					}
+						case OP_LOADKX: { // A: R(A) := Kst(extra arg)
+							assert GET_OPCODE(code[pc]) == OP_EXTRAARG;
+							int rb = GETARG_Ax(code[pc++]);
+							stack[a] = k[rb];
+							break;
+						}
 
-					case OP_ADD: { // A B C: R(A):= RK(B) + RK(C)
-						int b = GETARG_B(i);
-						int c = GETARG_C(i);
-						stack[a] = OperationHelper.add(state, getRK(stack, k, b), getRK(stack, k, c));
-						break;
-					}
+						case OP_LOADBOOL: { // A B C: R(A):= (Bool)B: if (C) pc++
+							stack[a] = GETARG_B(i) != 0 ? TRUE : FALSE;
+							if (GETARG_C(i) != 0) pc++; // skip next instruction (if C)
+							break;
+						}
 
-					case OP_SUB: { // A B C: R(A):= RK(B) - RK(C)
-						int b = GETARG_B(i);
-						int c = GETARG_C(i);
-						stack[a] = OperationHelper.sub(state, getRK(stack, k, b), getRK(stack, k, c));
-						break;
-					}
+						case OP_LOADNIL: { // A B     R(A), R(A+1), ..., R(A+B) := nil
+							int b = GETARG_B(i);
+							do {
+								stack[a++] = NIL;
+							} while (b-- > 0);
+							break;
+						}
 
-					case OP_MUL: { // A B C: R(A):= RK(B) * RK(C)
-						int b = GETARG_B(i);
-						int c = GETARG_C(i);
-						stack[a] = OperationHelper.mul(state, getRK(stack, k, b), getRK(stack, k, c));
-						break;
-					}
+						case OP_GETUPVAL: // A B: R(A):= UpValue[B]
+							stack[a] = upvalues[GETARG_B(i)].getValue();
+							break;
 
-					case OP_DIV: { // A B C: R(A):= RK(B) / RK(C)
-						int b = GETARG_B(i);
-						int c = GETARG_C(i);
-						stack[a] = OperationHelper.div(state, getRK(stack, k, b), getRK(stack, k, c));
-						break;
-					}
+						case OP_GETTABUP: {// A B C: R(A) := UpValue[B][RK(C)]
+							int b = GETARG_B(i);
+							int c = GETARG_C(i);
+							LuaValue t = upvalues[b].getValue();
+							stack[a] = ISK(c) && k[INDEXK(c)] instanceof LuaString key
+								? OperationHelper.getTable(state, t, key, -b - 1, p.indexCache, pc - 1)
+								: OperationHelper.getTable(state, t, getRK(stack, k, c), -b - 1);
+							break;
+						}
 
-					case OP_MOD: { // A B C: R(A):= RK(B) % RK(C)
-						int b = GETARG_B(i);
-						int c = GETARG_C(i);
-						stack[a] = OperationHelper.mod(state, getRK(stack, k, b), getRK(stack, k, c));
-						break;
-					}
+						case OP_GETTABLE: { // A B C: R(A):= R(B)[RK(C)]
+							int b = GETARG_B(i);
+							int c = GETARG_C(i);
+							stack[a] = ISK(c) && k[INDEXK(c)] instanceof LuaString key
+								? OperationHelper.getTable(state, stack[b], key, b, p.indexCache, pc - 1)
+								: OperationHelper.getTable(state, stack[b], getRK(stack, k, c), b);
+							break;
+						}
 
-					case OP_POW: { // A B C: R(A):= RK(B) ^ RK(C)
-						int b = GETARG_B(i);
-						int c = GETARG_C(i);
-						stack[a] = OperationHelper.pow(state, getRK(stack, k, b), getRK(stack, k, c));
-						break;
-					}
+						case OP_SETTABUP: {// A B C: UpValue[A][RK(B)] := RK(C)
+							int b = GETARG_B(i);
+							int c = GETARG_C(i);
+							OperationHelper.setTable(state, upvalues[a].getValue(), getRK(stack, k, b), getRK(stack, k, c), -b - 1);
+							break;
+						}
 
-					case OP_UNM: { // A B: R(A):= -R(B)
-						int b = GETARG_B(i);
-						stack[a] = OperationHelper.neg(state, getRK(stack, k, b));
-						break;
-					}
+						case OP_SETUPVAL: // A B: UpValue[B]:= R(A)
+							upvalues[GETARG_B(i)].setValue(stack[a]);
+							break;
 
-					case OP_NOT:// A B: R(A):= not R(B)
-						stack[a] = stack[GETARG_B(i)].toBoolean() ? FALSE : TRUE;
-						break;
+						case OP_SETTABLE: { // A B C: R(A)[RK(B)]:= RK(C)
+							int b = GETARG_B(i);
+							int c = GETARG_C(i);
+							OperationHelper.setTable(state, stack[a], getRK(stack, k, b), getRK(stack, k, c), a);
+							break;
+						}
 
-					case OP_LEN: { // A B: R(A):= length of R(B)
-						int b = GETARG_B(i);
-						stack[a] = OperationHelper.length(state, stack[b]);
-						break;
-					}
+						case OP_NEWTABLE: // A B C: R(A):= {} (size = B,C)
+							stack[a] = newTable(state, p.tableSites[pc - 1], i);
+							break;
 
-					case OP_CONCAT: { // A B C: R(A):= R(B).. ... ..R(C)
-						int b = GETARG_B(i);
-						int c = GETARG_C(i);
+						case OP_SELF: { // A B C: R(A+1):= R(B): R(A):= R(B)[RK(C)]
+							int b = GETARG_B(i);
+							int c = GETARG_C(i);
+							LuaValue o = stack[a + 1] = stack[b];
+							stack[a] = ISK(c) && k[INDEXK(c)] instanceof LuaString key
+								? OperationHelper.getTable(state, o, key, b, p.indexCache, pc - 1)
+								: OperationHelper.getTable(state, o, getRK(stack, k, c), b);
+							break;
+						}
 
-						di.top = c + 1;
-						concat(state, di, stack, di.top, c - b + 1);
-						stack[a] = stack[b];
-						di.top = b;
-						break;
-					}
+						case OP_ADD: { // A B C: R(A):= RK(B) + RK(C)
+							int b = GETARG_B(i);
+							int c = GETARG_C(i);
+							stack[a] = OperationHelper.add(state, getRK(stack, k, b), getRK(stack, k, c));
+							break;
+						}
 
-					case OP_JMP: // sBx: pc+=sBx
-						pc += doJump(di, i, 0);
-						break;
-
-					case OP_EQ: { // A B C: if ((RK(B) == RK(C)) ~= A) then pc++
-						int b = GETARG_B(i);
-						int c = GETARG_C(i);
-						if (OperationHelper.eq(state, getRK(stack, k, b), getRK(stack, k, c)) == (a != 0)) {
-							// We assume the next instruction is a jump and read the branch from there.
-							pc += doJump(di, code[pc], 1);
-						} else {
-							pc++;
+						case OP_SUB: { // A B C: R(A):= RK(B) - RK(C)
+							int b = GETARG_B(i);
+							int c = GETARG_C(i);
+							stack[a] = OperationHelper.sub(state, getRK(stack, k, b), getRK(stack, k, c));
+							break;
 						}
-						break;
-					}
 
-					case OP_LT: { // A B C: if ((RK(B) <  RK(C)) ~= A) then pc++
-						int b = GETARG_B(i);
-						int c = GETARG_C(i);
-						if (OperationHelper.lt(state, getRK(stack, k, b), getRK(stack, k, c)) == (a != 0)) {
-							pc += doJump(di, code[pc], 1);
-						} else {
-							pc++;
+						case OP_MUL: { // A B C: R(A):= RK(B) * RK(C)
+							int b = GETARG_B(i);
+							int c = GETARG_C(i);
+							stack[a] = OperationHelper.mul(state, getRK(stack, k, b), getRK(stack, k, c));
+							break;
 						}
-						break;
-					}
 
-					case OP_LE: { // A B C: if ((RK(B) <= RK(C)) ~= A) then pc++
-						int b = GETARG_B(i);
-						int c = GETARG_C(i);
-						if (OperationHelper.le(state, getRK(stack, k, b), getRK(stack, k, c)) == (a != 0)) {
-							pc += doJump(di, code[pc], 1);
-						} else {
-							pc++;
+						case OP_DIV: { // A B C: R(A):= RK(B) / RK(C)
+							int b = GETARG_B(i);
+							int c = GETARG_C(i);
+							stack[a] = OperationHelper.div(state, getRK(stack, k, b), getRK(stack, k, c));
+							break;
 						}
-						break;
-					}
 
-					case OP_TEST: { // A C: if not (R(A) <=> C) then pc++
-						if (stack[a].toBoolean() == ((GETARG_C(i)) != 0)) {
-							pc += doJump(di, code[pc], 1);
-						} else {
-							pc++;
+						case OP_MOD: { // A B C: R(A):= RK(B) % RK(C)
+							int b = GETARG_B(i);
+							int c = GETARG_C(i);
+							stack[a] = OperationHelper.mod(state, getRK(stack, k, b), getRK(stack, k, c));
+							break;
 						}
-						break;
-					}
 
-					case OP_TESTSET: { // A B C: if (R(B) <=> C) then R(A):= R(B) else pc++
-						/* note: doc appears to be reversed */
-						int b = GETARG_B(i);
-						int c = GETARG_C(i);
-						LuaValue val = stack[b];
-						if (val.toBoolean() == (c != 0)) {
-							stack[a] = val;
-							pc += doJump(di, code[pc], 1);
-						} else {
-							pc++;
+						case OP_POW: { // A B C: R(A):= RK(B) ^ RK(C)
+							int b = GETARG_B(i);
+							int c = GETARG_C(i);
+							stack[a] = OperationHelper.pow(state, getRK(stack, k, b), getRK(stack, k, c));
+							break;
 						}
-						break;
-					}
 
-					case OP_CALL: { // A B C: R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1)) */
-						int b = GETARG_B(i);
-						int c = GETARG_C(i);
+						case OP_UNM: { // A B: R(A):= -R(B)
+							int b = GETARG_B(i);
+							stack[a] = OperationHelper.neg(state, getRK(stack, k, b));
+							break;
+						}
 
-						LuaValue val = stack[a];
-						if (val instanceof LuaInterpretedFunction) {
-							function = (LuaInterpretedFunction) val;
+						case OP_NOT:// A B: R(A):= not R(B)
+							stack[a] = stack[GETARG_B(i)].toBoolean() ? FALSE : TRUE;
+							break;
 
-							Prototype newPrototype = function.p;
-							LuaValue[] newStack = createStack(newPrototype);
-							DebugFrame newFrame = ds.pushInfo();
-							Varargs args = b > 0
-								? setupStack(newPrototype, newStack, stack, a + 1, b - 1) // Exact args count
-								: setupStack(newPrototype, newStack, ValueFactory.varargsOfCopy(stack, a + 1, di.top - di.extras.count() - (a + 1), di.extras)); // From previous top
-							setupFrame(ds, newFrame, function, args, newStack, 0);
-							di = newFrame;
+						case OP_LEN: { // A B: R(A):= length of R(B)
+							int b = GETARG_B(i);
+							stack[a] = OperationHelper.length(state, stack[b]);
+							break;
+						}
 
-							continue newFrame;
-						} else {
-							nativeCall(state, di, stack, val, i, a, b, c);
+						case OP_CONCAT: // A B C: R(A):= R(B).. ... ..R(C)
+							concat(state, di, stack, i);
+							break;
+
+						case OP_JMP: { // sBx: pc+=sBx
+							int offset = doJump(di, i, 0);
+							pc += offset;
+							if (offset < 0) {
+								if (jit != null && jit.onBackEdge(ds, p)) {
+									di.pc = pc;
+									continue newFrame;
+								}
+								poll = true;
+							}
+							break;
 						}
-						break;
-					}
 
-					case OP_TAILCALL: { // A B C: return R(A)(R(A+1), ... ,R(A+B-1))
-						int b = GETARG_B(i);
-
-						LuaValue val = stack[a];
-						Varargs args;
-						switch (b) {
-							case 1 -> args = NONE;
-							case 2 -> args = stack[a + 1];
-							default -> {
-								Varargs v = di.extras;
-								args = b > 0 ?
-									ValueFactory.varargsOfCopy(stack, a + 1, b - 1) : // exact arg count
-									ValueFactory.varargsOfCopy(stack, a + 1, di.top - v.count() - (a + 1), v); // from prev top
+						case OP_EQ: { // A B C: if ((RK(B) == RK(C)) ~= A) then pc++
+							int b = GETARG_B(i);
+							int c = GETARG_C(i);
+							if (OperationHelper.eq(state, getRK(stack, k, b), getRK(stack, k, c)) == (a != 0)) {
+								// We assume the next instruction is a jump and read the branch from there.
+								int offset = doJump(di, code[pc], 1);
+								pc += offset;
+								if (offset < 0) {
+									if (jit != null && jit.onBackEdge(ds, p)) {
+										di.pc = pc;
+										continue newFrame;
+									}
+									poll = true;
+								}
+							} else {
+								pc++;
 							}
+							break;
 						}
 
-						LuaFunction functionVal;
-						if (val instanceof LuaFunction func) {
-							functionVal = func;
-						} else {
-							functionVal = Dispatch.getCallMetamethod(state, val, a);
-							args = ValueFactory.varargsOf(val, args);
+						case OP_LT: { // A B C: if ((RK(B) <  RK(C)) ~= A) then pc++
+							int b = GETARG_B(i);
+							int c = GETARG_C(i);
+							if (OperationHelper.lt(state, getRK(stack, k, b), getRK(stack, k, c)) == (a != 0)) {
+								int offset = doJump(di, code[pc], 1);
+								pc += offset;
+								if (offset < 0) {
+									if (jit != null && jit.onBackEdge(ds, p)) {
+										di.pc = pc;
+										continue newFrame;
+									}
+									poll = true;
+								}
+							} else {
+								pc++;
+							}
+							break;
 						}
 
-						if (functionVal instanceof LuaInterpretedFunction) {
-							int flags = di.flags;
-							di.cleanup();
-							ds.popInfo();
+						case OP_LE: { // A B C: if ((RK(B) <= RK(C)) ~= A) then pc++
+							int b = GETARG_B(i);
+							int c = GETARG_C(i);
+							if (OperationHelper.le(state, getRK(stack, k, b), getRK(stack, k, c)) == (a != 0)) {
+								int offset = doJump(di, code[pc], 1);
+								pc += offset;
+								if (offset < 0) {
+									if (jit != null && jit.onBackEdge(ds, p)) {
+										di.pc = pc;
+										continue newFrame;
+									}
+									poll = true;
+								}
+							} else {
+								pc++;
+							}
+							break;
+						}
 
-							// FIXME: Return hook???!?
+						case OP_TEST: { // A C: if not (R(A) <=> C) then pc++
+							if (stack[a].toBoolean() == ((GETARG_C(i)) != 0)) {
+								int offset = doJump(di, code[pc], 1);
+								pc += offset;
+								if (offset < 0) {
+									if (jit != null && jit.onBackEdge(ds, p)) {
+										di.pc = pc;
+										continue newFrame;
+									}
+									poll = true;
+								}
+							} else {
+								pc++;
+							}
+							break;
+						}
 
-							// Replace the current frame with a new one.
-							function = (LuaInterpretedFunction) functionVal;
-							di = (flags & FLAG_FRESH) != 0 ? ds.pushJavaInfo() : ds.pushInfo();
-							setupCall(ds, di, function, args, (flags & FLAG_FRESH) | FLAG_TAIL);
-							continue newFrame;
-						} else {
-							Varargs v = Dispatch.invoke(state, functionVal, args);
-							di.top = a + v.count();
-							di.extras = v;
+						case OP_TESTSET: { // A B C: if (R(B) <=> C) then R(A):= R(B) else pc++
+							/* note: doc appears to be reversed */
+							int b = GETARG_B(i);
+							int c = GETARG_C(i);
+							LuaValue val = stack[b];
+							if (val.toBoolean() == (c != 0)) {
+								stack[a] = val;
+								int offset = doJump(di, code[pc], 1);
+								pc += offset;
+								if (offset < 0) {
+									if (jit != null && jit.onBackEdge(ds, p)) {
+										di.pc = pc;
+										continue newFrame;
+									}
+									poll = true;
+								}
+							} else {
+								pc++;
+							}
 							break;
 						}
-					}
 
-					case OP_RETURN: { // A B: return R(A), ... ,R(A+B-2) (see note)
-						int b = GETARG_B(i);
+						case OP_CALL: // A B C: R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1)) */
+							if (call(state, ds, di, stack, i)) {
+								di = ds.getStackUnsafe();
+								function = (LuaInterpretedFunction) di.func;
+								continue newFrame;
+							}
+							poll = true;
+							break;
+
+						case OP_TAILCALL: // A B C: return R(A)(R(A+1), ... ,R(A+B-1))
+							if (tailCall(state, ds, di, stack, i)) {
+								di = ds.getStackUnsafe();
+								function = (LuaInterpretedFunction) di.func;
+								continue newFrame;
+							}
+							poll = true;
+							break;
 
-						int flags = di.flags, top = di.top;
-						Varargs v = di.extras;
-						di.cleanup();
+						case OP_RETURN: { // A B: return R(A), ... ,R(A+B-2) (see note)
+							if (returnDirect(ds, di, stack, i)) {
+								di = ds.getStackUnsafe();
+								function = (LuaInterpretedFunction) di.func;
+								continue newFrame;
+							}
 
-						Varargs ret = b > 0
-							? ValueFactory.varargsOfCopy(stack, a, b - 1)
-							: ValueFactory.varargsOfCopy(stack, a, top - v.count() - a, v);
+							Varargs ret = ret(di, stack, i);
+							if ((di.flags & FLAG_FRESH) != 0) return ret;
 
-						if ((flags & FLAG_FRESH) != 0) {
-							// If we're a fresh invocation then return to the parent.
-							return ret;
-						} else {
-							ds.onReturn(di, ret);
-							di = ds.getStackUnsafe();
+							di = returnTo(state, ds, di, ret);
 							function = (LuaInterpretedFunction) di.func;
-							resume(state, di, function, ret);
 							continue newFrame;
 						}
-					}
-
-					case OP_FORLOOP: { // A sBx: R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }
-						double limit = stack[a + 1].checkDouble(state);
-						double step = stack[a + 2].checkDouble(state);
-						double value = stack[a].checkDouble(state);
-						double idx = step + value;
-						if (0 < step ? idx <= limit : limit <= idx) {
-							stack[a + 3] = stack[a] = valueOf(idx);
-							pc += GETARG_sBx(i);
-						}
-						break;
-					}
 
-					case OP_FORPREP: { // A sBx: R(A)-=R(A+2): pc+=sBx
-						LuaNumber init = stack[a].checkNumber(state, "'for' initial value must be a number");
-						LuaNumber limit = stack[a + 1].checkNumber(state, "'for' limit must be a number");
-						LuaNumber step = stack[a + 2].checkNumber(state, "'for' step must be a number");
-						stack[a] = valueOf(init.toDouble() - step.toDouble());
-						stack[a + 1] = limit;
-						stack[a + 2] = step;
-						pc += GETARG_sBx(i);
-						break;
-					}
+						case OP_FORLOOP: // A sBx: R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }
+							if (forLoop(state, stack, a)) {
+								pc += GETARG_sBx(i);
+								if (jit != null && jit.onBackEdge(ds, p)) {
+									di.pc = pc;
+									continue newFrame;
+								}
+								poll = true;
+							}
+							break;
 
-					case OP_TFORCALL: {
-						Varargs result = Dispatch.invoke(state, stack[a], ValueFactory.varargsOf(stack[a + 1], stack[a + 2]), a);
-						for (int c = GETARG_C(i); c >= 1; --c) stack[a + 2 + c] = result.arg(c);
+						case OP_FORPREP: // A sBx: R(A)-=R(A+2): pc+=sBx
+							forPrep(state, stack, a);
+							pc += GETARG_sBx(i);
+							break;
 
-						i = code[pc++];
-						a = GETARG_A(i);
-						assert GET_OPCODE(i) == OP_TFORLOOP;
-					}
-					// fallthrough to OP_TFORLOOP, avoiding an extra interpreter loop.
+						case OP_TFORCALL: {
+							tforCall(state, stack, i);
 
-					case OP_TFORLOOP: {
-						var value = stack[a + 1];
-						if (!value.isNil()) {
-							stack[a] = value;
-							pc += GETARG_sBx(i);
+							i = code[pc++];
+							a = GETARG_A(i);
+							assert GET_OPCODE(i) == OP_TFORLOOP;
 						}
-						break;
-					}
-
-					case OP_SETLIST: { // A B C: R(A)[(C-1)*FPF+i]:= R(A+i), 1 <= i <= B
-						int b = GETARG_B(i);
-						int c = GETARG_C(i);
-						if (c == 0) c = GETARG_Ax(code[pc++]);
-
-						int offset = (c - 1) * LFIELDS_PER_FLUSH;
-						LuaTable tbl = stack[a].checkTable(state);
-						if (b == 0) {
-							b = di.top - a - 1;
-							int m = b - di.extras.count();
-							tbl.presize(offset + b);
-
-							int j = 1;
-							for (; j <= m; j++) tbl.rawset(offset + j, stack[a + j]);
-							for (; j <= b; j++) tbl.rawset(offset + j, di.extras.arg(j - m));
-						} else {
-							tbl.presize(offset + b);
-							for (int j = 1; j <= b; j++) tbl.rawset(offset + j, stack[a + j]);
+						// fallthrough to OP_TFORLOOP, avoiding an extra interpreter loop.
+
+						case OP_TFORLOOP: {
+							var value = stack[a + 1];
+							if (!value.isNil()) {
+								stack[a] = value;
+								pc += GETARG_sBx(i);
+								if (jit != null && jit.onBackEdge(ds, p)) {
+									di.pc = pc;
+									continue newFrame;
+								}
+								poll = true;
+							}
+							break;
 						}
-						break;
-					}
 
-					case OP_CLOSURE: { // A Bx: R(A):= closure(KPROTO[Bx], R(A), ... ,R(A+n))
-						Prototype newp = p.children[GETARG_Bx(i)];
-						LuaInterpretedFunction newcl = new LuaInterpretedFunction(state.allocationTracker, newp);
-						for (int j = 0, nup = newp.upvalues(); j < nup; ++j) {
-							var up = newp.getUpvalue(j);
-							newcl.upvalues[j] = up.fromLocal() ? di.getUpvalue(up.index()) : upvalues[up.index()];
+						case OP_SETLIST: { // A B C: R(A)[(C-1)*FPF+i]:= R(A+i), 1 <= i <= B
+							int c = GETARG_C(i);
+							if (c == 0) c = GETARG_Ax(code[pc++]);
+							setList(state, di, stack, i, c);
+							break;
 						}
-						stack[a] = newcl;
-						break;
-					}
 
-					case OP_VARARG: { // A B: R(A), R(A+1), ..., R(A+B-1) = vararg
-						int b = GETARG_B(i);
-						if (b == 0) {
-							di.top = a + varargs.count();
-							di.extras = varargs;
-						} else {
-							for (int j = 1; j < b; ++j) {
-								stack[a + j - 1] = varargs.arg(j);
-							}
-						}
-						break;
-					}
+						case OP_CLOSURE: // A Bx: R(A):= closure(KPROTO[Bx], R(A), ... ,R(A+n))
+							stack[a] = closure(state, di, function, i);
+							break;
+
+						case OP_VARARG: // A B: R(A), R(A+1), ..., R(A+B-1) = vararg
+							vararg(di, stack, varargs, i);
+							break;
 
-					default: {
-						assert false : "Unknown opcode";
-						throw new IllegalStateException("Unknown opcode");
+						default: {
+							assert false : "Unknown opcode";
+							throw new IllegalStateException("Unknown opcode");
+						}
 					}
 				}
 			}
+		} finally {
+			// Charge any instructions since the last safepoint. Functions called from Java (such as metamethods) may return
+			// or error before reaching one. If this exhausts the budget, it is handled at the caller's next safepoint.
+			state.useInstructions(executed);
+			if (ExecutionStatistics.TIMING) state.statistics.resumeTiming(outerOpcode);
 		}
 	}
 
@@ -589,7 +593,352 @@ final class LuaInterpreter {
 		return GETARG_sBx(i) + e;
 	}
 
+	//region Shared instruction implementations
+	// These are used by both the interpreter and compiled code (see BytecodeEmitter), and so take the raw instruction
+	// rather than decoded arguments.
+
+	static LuaTable newTable(LuaState state, TableSite site, int i) throws LuaUncatchableError {
+		return site.newTable(luaO_fb2int(GETARG_B(i)), luaO_fb2int(GETARG_C(i)), state.allocationTracker);
+	}
+
+	/**
+	 * Execute an {@link Lua#OP_CALL} instruction.
+	 *
+	 * @return Whether a new Lua frame was pushed. In this case, the caller should continue executing the new frame.
+	 */
+	static boolean call(LuaState state, DebugState ds, DebugFrame di, LuaValue[] stack, int i) throws LuaError, LuaUncatchableError, UnwindThrowable {
+		int a = GETARG_A(i);
+		int b = GETARG_B(i);
+
+		LuaValue val = stack[a];
+		if (val instanceof LuaInterpretedFunction function) {
+			Prototype newPrototype = function.p;
+			DebugFrame newFrame = ds.pushInfo();
+			LuaValue[] newStack = newFrame.allocateStack(newPrototype.maxStackSize);
+			Varargs args = b > 0
+				? setupStack(newPrototype, newStack, stack, a + 1, b - 1) // Exact args count
+				: setupStack(newPrototype, newStack, ValueFactory.varargsOfCopy(stack, a + 1, di.top - di.extras.count() - (a + 1), di.extras)); // From previous top
+			setupFrame(ds, newFrame, function, args, newStack, 0);
+			return true;
+		} else {
+			nativeCall(state, di, stack, val, i, a, b, GETARG_C(i));
+			return false;
+		}
+	}
+
+	/**
+	 * Execute an {@link Lua#OP_TAILCALL} instruction.
+	 *
+	 * @return Whether the current frame was replaced with a new Lua frame. In this case, the caller should continue
+	 * executing the new frame.
+	 */
+	static boolean tailCall(LuaState state, DebugState ds, DebugFrame di, LuaValue[] stack, int i) throws LuaError, LuaUncatchableError, UnwindThrowable {
+		int a = GETARG_A(i);
+		int b = GETARG_B(i);
+
+		LuaValue val = stack[a];
+		if (isFixedArity(val, b)) {
+			LuaValue v = callFixedArity(state, stack, val, a, b);
+			di.top = a + 1;
+			di.extras = v;
+			return false;
+		}
+
+		Varargs args;
+		switch (b) {
+			case 1 -> args = NONE;
+			case 2 -> args = stack[a + 1];
+			default -> {
+				Varargs v = di.extras;
+				args = b > 0 ?
+					ValueFactory.varargsOfCopy(stack, a + 1, b - 1) : // exact arg count
+					ValueFactory.varargsOfCopy(stack, a + 1, di.top - v.count() - (a + 1), v); // from prev top
+			}
+		}
+
+		LuaFunction functionVal;
+		if (val instanceof LuaFunction func) {
+			functionVal = func;
+		} else {
+			functionVal = Dispatch.getCallMetamethod(state, val, a);
+			args = ValueFactory.varargsOf(val, args);
+		}
+
+		if (functionVal instanceof LuaInterpretedFunction function) {
+			int flags = di.flags;
+			di.cleanup();
+			ds.popInfo();
+
+			// FIXME: Return hook???!?
+
+			// Replace the current frame with a new one.
+			DebugFrame newFrame = (flags & FLAG_FRESH) != 0 ? ds.pushJavaInfo() : ds.pushInfo();
+			setupCall(ds, newFrame, function, args, (flags & FLAG_FRESH) | FLAG_TAIL);
+			return true;
+		} else {
+			Varargs v = Dispatch.invoke(state, functionVal, args);
+			di.top = a + v.count();
+			di.extras = v;
+			return false;
+		}
+	}
+
+	/**
+	 * Execute an {@link Lua#OP_RETURN} instruction, closing any open upvalues and collecting the returned values.
+	 * <p>
+	 * The frame is not popped: this is left to the caller (or {@link #returnTo(LuaState, DebugState, DebugFrame, Varargs)}).
+	 */
+	static Varargs ret(DebugFrame di, LuaValue[] stack, int i) {
+		int a = GETARG_A(i);
+		int b = GETARG_B(i);
+
+		int top = di.top;
+		Varargs v = di.extras;
+		di.cleanup();
+
+		return b > 0
+			? ValueFactory.varargsOfCopy(stack, a, b - 1)
+			: ValueFactory.varargsOfCopy(stack, a, top - v.count() - a, v);
+	}
+
+	/**
+	 * Execute an {@link Lua#OP_RETURN} instruction by copying the returned values directly into the calling Lua
+	 * function's registers.
+	 * <p>
+	 * This only handles the common case of a fixed number of values returned to a call expecting a fixed number of
+	 * results. Otherwise, {@link #ret(DebugFrame, LuaValue[], int)} should be used.
+	 *
+	 * @return Whether the frame returned. In this case, the caller should continue executing the calling frame.
+	 */
+	static boolean returnDirect(DebugState ds, DebugFrame di, LuaValue[] stack, int i) {
+		int b = GETARG_B(i);
+		if (b == 0 || (di.flags & FLAG_FRESH) != 0 || ds.hasReturnHook()) return false;
+
+		DebugFrame caller = di.previous;
+		int call = ((LuaInterpretedFunction) caller.func).p.code[caller.pc];
+		int c = GETARG_C(call);
+		if (c == 0 || GET_OPCODE(call) != OP_CALL) return false;
+
+		di.cleanup();
+
+		LuaValue[] callerStack = caller.stack;
+		int a = GETARG_A(i), callerA = GETARG_A(call);
+		int copy = Math.min(b, c) - 1;
+		System.arraycopy(stack, a, callerStack, callerA, copy);
+		for (int j = copy; j < c - 1; j++) callerStack[callerA + j] = NIL;
+
+		ds.onReturnNoHook();
+		caller.extras = NONE;
+		caller.pc++;
+		return true;
+	}
+
+	/**
+	 * Pop a non-fresh frame which has returned, and pass the results back to the calling Lua function.
+	 *
+	 * @return The frame of the calling function, which should now be executed.
+	 */
+	private static DebugFrame returnTo(LuaState state, DebugState ds, DebugFrame di, Varargs ret) throws LuaError, LuaUncatchableError, UnwindThrowable {
+		ds.onReturn(di, ret);
+		di = ds.getStackUnsafe();
+		resume(state, di, (LuaInterpretedFunction) di.func, ret);
+		return di;
+	}
+
+	static boolean forLoop(LuaState state, LuaValue[] stack, int a) throws LuaError, LuaUncatchableError {
+		// If the index and step are integers, we can step the loop without going via doubles. This is exact (and so
+		// equivalent to the double version) as long as we stay within a long, which an int + int always will.
+		if (stack[a] instanceof LuaInteger value && stack[a + 2] instanceof LuaInteger step) {
+			long idx = (long) value.toInteger() + step.toInteger();
+			LuaValue limit = stack[a + 1];
+			boolean loop = limit instanceof LuaInteger intLimit
+				? 0 < step.toInteger() ? idx <= intLimit.toInteger() : intLimit.toInteger() <= idx
+				: 0 < step.toInteger() ? idx <= limit.checkDouble(state) : limit.checkDouble(state) <= idx;
+			if (loop) stack[a + 3] = stack[a] = LuaInteger.valueOf(idx);
+			return loop;
+		}
+
+		double limit = stack[a + 1].checkDouble(state);
+		double step = stack[a + 2].checkDouble(state);
+		double value = stack[a].checkDouble(state);
+		double idx = step + value;
+		if (0 < step ? idx <= limit : limit <= idx) {
+			stack[a + 3] = stack[a] = valueOf(idx);
+			return true;
+		}
+
+		return false;
+	}
+
+	static void forPrep(LuaState state, LuaValue[] stack, int a) throws LuaError, LuaUncatchableError {
+		LuaNumber init = stack[a].checkNumber(state, "'for' initial value must be a number");
+		LuaNumber limit = stack[a + 1].checkNumber(state, "'for' limit must be a number");
+		LuaNumber step = stack[a + 2].checkNumber(state, "'for' step must be a number");
+		stack[a] = init instanceof LuaInteger intInit && step instanceof LuaInteger intStep
+			? LuaInteger.valueOf((long) intInit.toInteger() - intStep.toInteger())
+			: valueOf(init.toDouble() - step.toDouble());
+		stack[a + 1] = limit;
+		stack[a + 2] = step;
+	}
+
+	static void tforCall(LuaState state, LuaValue[] stack, int i) throws LuaError, LuaUncatchableError, UnwindThrowable {
+		int a = GETARG_A(i);
+		LuaValue function = stack[a];
+		if (
+			stack[a + 1] instanceof LuaTable table && (function == state.nextFunction || function == state.inextFunction)
+				&& tforTable(state, stack, a, GETARG_C(i), table, function == state.nextFunction)
+		) {
+			return;
+		}
+
+		Varargs result = Dispatch.invoke(state, stack[a], ValueFactory.varargsOf(stack[a + 1], stack[a + 2]), a);
+		for (int c = GETARG_C(i); c >= 1; --c) stack[a + 2 + c] = result.arg(c);
+	}
+
+	/**
+	 * Step a generic {@code for} loop over a table, using the stock {@code next} or {@code ipairs} iterator. Rather than
+	 * calling the iterator, we read from the table directly, avoiding any allocation.
+	 *
+	 * @param a     The A argument of the {@link Lua#OP_TFORCALL} instruction.
+	 * @param c     The C argument of the {@link Lua#OP_TFORCALL} instruction (the number of loop variables).
+	 * @param table The table being iterated over.
+	 * @param next  Whether this is the {@code next} function, rather than the {@code ipairs} iterator.
+	 * @return Whether the loop was stepped. If {@code false}, the iterator should be called as normal.
+	 */
+	private static boolean tforTable(LuaState state, LuaValue[] stack, int a, int c, LuaTable table, boolean next) {
+		// Hooks should see the call to the iterator.
+		DebugState ds = DebugState.get(state);
+		if (ds.hasCallHook() || ds.hasReturnHook()) return false;
+
+		LuaValue key = stack[a + 2], value;
+		if (next) {
+			int slot = table.slotOf(key);
+			// Call next with invalid keys, so it throws an error.
+			if (slot < 0 && !key.isNil()) return false;
+
+			slot = table.nextSlot(slot);
+			if (slot < 0) {
+				key = value = NIL;
+			} else {
+				key = table.slotKey(slot);
+				value = table.slotValue(slot);
+			}
+		} else {
+			// The ipairs iterator respects __index, so only handle tables without a metatable.
+			if (!(key instanceof LuaInteger index) || table.getMetatable(state) != null) return false;
+
+			int nextIndex = index.intValue() + 1;
+			value = table.rawget(nextIndex);
+			key = value.isNil() ? NIL : LuaInteger.valueOf(nextIndex);
+		}
+
+		if (c >= 1) stack[a + 3] = key;
+		if (c >= 2) stack[a + 4] = value;
+		for (int j = 3; j <= c; j++) stack[a + 2 + j] = NIL;
+		return true;
+	}
+
+	/**
+	 * Execute an {@link Lua#OP_SETLIST} instruction.
+	 *
+	 * @param c The batch number. This is normally the C argument, but is read from the next instruction if that is 0.
+	 */
+	static void setList(LuaState state, DebugFrame di, LuaValue[] stack, int i, int c) throws LuaError, LuaUncatchableError {
+		int a = GETARG_A(i);
+		int b = GETARG_B(i);
+
+		int offset = (c - 1) * LFIELDS_PER_FLUSH;
+		LuaTable tbl = stack[a].checkTable(state);
+		if (b == 0) {
+			b = di.top - a - 1;
+			int m = b - di.extras.count();
+			tbl.presize(offset + b);
+
+			int j = 1;
+			for (; j <= m; j++) tbl.rawset(offset + j, stack[a + j]);
+			for (; j <= b; j++) tbl.rawset(offset + j, di.extras.arg(j - m));
+		} else {
+			tbl.presize(offset + b);
+			for (int j = 1; j <= b; j++) tbl.rawset(offset + j, stack[a + j]);
+		}
+	}
+
+	static LuaInterpretedFunction closure(LuaState state, DebugFrame di, LuaInterpretedFunction function, int i) throws LuaUncatchableError {
+		Prototype newp = function.p.children[GETARG_Bx(i)];
+		Upvalue[] upvalues = function.upvalues;
+
+		// As in Lua 5.2, reuse the previous closure for this prototype if it captured exactly the same upvalues, as it
+		// is indistinguishable from a new one.
+		WeakReference<LuaInterpretedFunction> cacheRef = newp.closureCache;
+		LuaInterpretedFunction cached = cacheRef == null ? null : cacheRef.get();
+		if (cached != null && hasSameUpvalues(di, upvalues, newp, cached)) return cached;
+
+		// If this closure captures a local which has not been captured before (such as a fresh loop variable), the next
+		// closure will usually capture a different upvalue, and so could not reuse this one. Don't replace an existing
+		// cache entry in this case, to avoid allocating a reference on every iteration which will never be used.
+		boolean reusable = true;
+		LuaInterpretedFunction newcl = new LuaInterpretedFunction(state.allocationTracker, newp);
+		for (int j = 0, nup = newp.upvalues(); j < nup; ++j) {
+			var up = newp.getUpvalue(j);
+			if (up.fromLocal()) {
+				if (!di.hasUpvalue(up.index())) reusable = false;
+				newcl.upvalues[j] = di.getUpvalue(up.index());
+			} else {
+				newcl.upvalues[j] = upvalues[up.index()];
+			}
+		}
+		if (reusable || cached == null) newp.closureCache = new WeakReference<>(newcl);
+		return newcl;
+	}
+
+	private static boolean hasSameUpvalues(DebugFrame di, Upvalue[] upvalues, Prototype p, LuaInterpretedFunction closure) {
+		for (int j = 0, nup = p.upvalues(); j < nup; ++j) {
+			var up = p.getUpvalue(j);
+			Upvalue upvalue = up.fromLocal() ? di.getUpvalue(up.index()) : upvalues[up.index()];
+			if (closure.upvalues[j] != upvalue) return false;
+		}
+		return true;
+	}
+
+	static void vararg(DebugFrame di, LuaValue[] stack, Varargs varargs, int i) {
+		int a = GETARG_A(i);
+		int b = GETARG_B(i);
+		if (b == 0) {
+			di.top = a + varargs.count();
+			di.extras = varargs;
+		} else {
+			for (int j = 1; j < b; ++j) {
+				stack[a + j - 1] = varargs.arg(j);
+			}
+		}
+	}
+
+	static void concat(LuaState state, DebugFrame di, LuaValue[] stack, int i) throws LuaError, LuaUncatchableError, UnwindThrowable {
+		int a = GETARG_A(i);
+		int b = GETARG_B(i);
+		int c = GETARG_C(i);
+
+		di.top = c + 1;
+		concat(state, di, stack, di.top, c - b + 1);
+		stack[a] = stack[b];
+		di.top = b;
+	}
+
+	//endregion
+
 	private static void nativeCall(LuaState state, DebugFrame di, LuaValue[] stack, LuaValue val, int i, int a, int b, int c) throws UnwindThrowable, LuaError, LuaUncatchableError {
+		if (c != 1 && c != 2 && isFixedArity(val, b)) {
+			LuaValue v = callFixedArity(state, stack, val, a, b);
+			if (c > 0) {
+				stack[a] = v;
+				for (int j = 1; j < c - 1; j++) stack[a + j] = NIL;
+			} else {
+				di.top = a + 1;
+				di.extras = v;
+			}
+			return;
+		}
+
 		switch (i & (MASK_B | MASK_C)) {
 			case (1 << POS_B) | (0 << POS_C) -> {
 				Varargs v = di.extras = Dispatch.invoke(state, val, NONE, a);
@@ -623,6 +972,29 @@ final class LuaInterpreter {
 		}
 	}
 
+	/**
+	 * Determine if this is a call to a {@link LibFunction} which takes a fixed number of arguments. These always return
+	 * a single value, and so can be called without building a {@link Varargs} for their arguments or return value,
+	 * whatever the number of results the caller expects.
+	 *
+	 * @param function The function being called.
+	 * @param b        The B argument of the call instruction: the number of arguments plus one.
+	 * @return Whether this can be called with {@link #callFixedArity(LuaState, LuaValue[], LuaValue, int, int)}.
+	 */
+	private static boolean isFixedArity(LuaValue function, int b) {
+		return b >= 1 && b <= 4 && function instanceof LibFunction && !(function instanceof VarArgFunction);
+	}
+
+	private static LuaValue callFixedArity(LuaState state, LuaValue[] stack, LuaValue function, int a, int b) throws LuaError, LuaUncatchableError, UnwindThrowable {
+		return switch (b) {
+			case 1 -> Dispatch.call(state, function, a);
+			case 2 -> Dispatch.call(state, function, stack[a + 1], a);
+			case 3 -> Dispatch.call(state, function, stack[a + 1], stack[a + 2], a);
+			case 4 -> Dispatch.call(state, function, stack[a + 1], stack[a + 2], stack[a + 3], a);
+			default -> throw new IllegalStateException("Unexpected argument count " + (b - 1));
+		};
+	}
+
 	private static void concat(LuaState state, DebugFrame frame, LuaValue[] stack, int top, int total) throws LuaError, LuaUncatchableError, UnwindThrowable {
 		try {
 			do {
@@ -0,0 +1,298 @@
+package org.figuramc.figura_cobalt.org.squiddev.cobalt.function;
+
+import org.figuramc.figura_cobalt.org.squiddev.cobalt.Prototype;
+
+import java.util.BitSet;
+
+import static org.figuramc.figura_cobalt.org.squiddev.cobalt.Lua.*;
+
+/**
+ * Determines which arithmetic results the {@link BytecodeEmitter} can keep as unboxed {@code double}s, rather than
+ * allocating a {@link org.figuramc.figura_cobalt.org.squiddev.cobalt.LuaNumber} and storing it in the register array.
+ * <p>
+ * A result may be kept unboxed if it is only ever read as an operand of other arithmetic instructions, and it dies
+ * (is overwritten or never read again) within the same basic block. This is typically the case for the temporaries
+ * of an expression such as {@code x * x + y * y}.
+ * <p>
+ * Between an unboxed value being produced and it dying, the register array does not hold its current value. We
+ * therefore require that any instruction in this range cannot jump, and can only call Lua code from a slow path, which
+ * writes unboxed values back to the register array first. Compiled code also cannot be entered in this range.
+ */
+final class UnboxedRegisters {
+	/**
+	 * Whether the arithmetic instruction at each program counter produces an unboxed value.
+	 */
+	final boolean[] unboxed;
+
+	/**
+	 * Whether each instruction is executed while an unboxed value is live, and so cannot be used as an entry point.
+	 */
+	final boolean[] noEntry;
+
+	/**
+	 * The registers which are read at or after each instruction, before being overwritten.
+	 */
+	final BitSet[] liveIn;
+
+	private final int[] code;
+	private final int registers;
+
+	private UnboxedRegisters(Prototype p) {
+		code = p.code;
+		registers = p.maxStackSize;
+		unboxed = new boolean[code.length];
+		noEntry = new boolean[code.length];
+		liveIn = new BitSet[code.length];
+	}
+
+	static UnboxedRegisters analyse(Prototype p) {
+		UnboxedRegisters analysis = new UnboxedRegisters(p);
+		analysis.computeLiveness();
+		analysis.findUnboxed(findCaptured(p), findJumpTargets(p.code));
+		return analysis;
+	}
+
+	/**
+	 * Whether this opcode performs arithmetic, and so may produce or consume an unboxed value.
+	 *
+	 * @param op The opcode.
+	 * @return Whether this is an arithmetic opcode.
+	 */
+	static boolean isArithmetic(int op) {
+		return op >= OP_ADD && op <= OP_UNM;
+	}
+
+	/**
+	 * Whether this instruction may execute while an unboxed value is live. Such instructions must not jump, and must
+	 * write unboxed values to the register array before calling any Lua code.
+	 *
+	 * @param op The opcode.
+	 * @return Whether this instruction is allowed.
+	 */
+	private static boolean isSafe(int op) {
+		return switch (op) {
+			case OP_MOVE, OP_LOADK, OP_LOADKX, OP_LOADNIL, OP_GETUPVAL, OP_GETTABUP, OP_GETTABLE, OP_NOT, OP_EXTRAARG -> true;
+			default -> isArithmetic(op);
+		};
+	}
+
+	private void findUnboxed(BitSet captured, boolean[] targets) {
+		for (int pc = 0; pc < code.length; pc++) {
+			int i = code[pc];
+			int r = GETARG_A(i);
+			if (!isArithmetic(GET_OPCODE(i)) || captured.get(r)) continue;
+
+			int end = findEnd(pc, r, targets);
+			if (end < 0) continue;
+
+			unboxed[pc] = true;
+			for (int q = pc + 1; q <= end; q++) noEntry[q] = true;
+		}
+	}
+
+	/**
+	 * Find the last instruction which requires the value produced by an arithmetic instruction.
+	 *
+	 * @param pc      The arithmetic instruction.
+	 * @param r       The register written to.
+	 * @param targets The targets of any jump.
+	 * @return The last instruction the value is live in, or {@code -1} if the value cannot be unboxed.
+	 */
+	private int findEnd(int pc, int r, boolean[] targets) {
+		for (int q = pc + 1; q < code.length; q++) {
+			if (!liveIn[q].get(r)) return q - 1;
+
+			int i = code[q];
+			int op = GET_OPCODE(i);
+			if (targets[q] || !isSafe(op)) return -1;
+
+			// The only instructions which may read an unboxed value are other arithmetic instructions.
+			if (!isArithmetic(op) && reads(i, r)) return -1;
+
+			// The value is overwritten, so this is the last instruction to use it.
+			if (op != OP_EXTRAARG && (GETARG_A(i) == r || (op == OP_LOADNIL && r >= GETARG_A(i) && r <= GETARG_A(i) + GETARG_B(i)))) {
+				return q;
+			}
+		}
+
+		return -1;
+	}
+
+	private static boolean reads(int i, int r) {
+		return switch (GET_OPCODE(i)) {
+			case OP_MOVE, OP_NOT -> GETARG_B(i) == r;
+			case OP_GETTABLE -> GETARG_B(i) == r || GETARG_C(i) == r;
+			case OP_GETTABUP -> GETARG_C(i) == r;
+			default -> false;
+		};
+	}
+
+	/**
+	 * Find all registers captured as upvalues by a closure. These may be read by any call, and so are never unboxed.
+	 *
+	 * @param p The prototype.
+	 * @return The set of captured registers.
+	 */
+	private static BitSet findCaptured(Prototype p) {
+		BitSet captured = new BitSet();
+		for (int i : p.code) {
+			if (GET_OPCODE(i) != OP_CLOSURE) continue;
+
+			Prototype child = p.children[GETARG_Bx(i)];
+			for (int j = 0; j < child.upvalues(); j++) {
+				var upvalue = child.getUpvalue(j);
+				if (upvalue.fromLocal()) captured.set(upvalue.index());
+			}
+		}
+		return captured;
+	}
+
+	private static boolean[] findJumpTargets(int[] code) {
+		boolean[] targets = new boolean[code.length + 1];
+		for (int pc = 0; pc < code.length; pc++) {
+			int i = code[pc];
+			switch (GET_OPCODE(i)) {
+				case OP_JMP, OP_FORLOOP, OP_FORPREP, OP_TFORLOOP -> targets[pc + 1 + GETARG_sBx(i)] = true;
+				case OP_EQ, OP_LT, OP_LE, OP_TEST, OP_TESTSET -> targets[pc + 2] = true;
+				case OP_LOADBOOL -> {
+					if (GETARG_C(i) != 0) targets[pc + 2] = true;
+				}
+			}
+		}
+		return targets;
+	}
+
+	/**
+	 * Compute the registers live at the start of each instruction, using the standard backwards dataflow analysis.
+	 */
+	private void computeLiveness() {
+		int length = code.length;
+		BitSet[] use = new BitSet[length], def = new BitSet[length];
+		for (int pc = 0; pc < length; pc++) {
+			use[pc] = new BitSet(registers);
+			def[pc] = new BitSet(registers);
+			useDef(code[pc], use[pc], def[pc]);
+			liveIn[pc] = (BitSet) use[pc].clone();
+		}
+
+		BitSet out = new BitSet(registers);
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int pc = length - 1; pc >= 0; pc--) {
+				out.clear();
+				int i = code[pc];
+				switch (GET_OPCODE(i)) {
+					case OP_JMP, OP_FORPREP -> addLive(out, pc + 1 + GETARG_sBx(i));
+					case OP_FORLOOP, OP_TFORLOOP -> {
+						addLive(out, pc + 1 + GETARG_sBx(i));
+						addLive(out, pc + 1);
+					}
+					case OP_EQ, OP_LT, OP_LE, OP_TEST, OP_TESTSET -> {
+						addLive(out, pc + 1);
+						addLive(out, pc + 2);
+					}
+					case OP_LOADBOOL -> addLive(out, GETARG_C(i) != 0 ? pc + 2 : pc + 1);
+					case OP_RETURN -> {
+					}
+					default -> addLive(out, pc + 1);
+				}
+
+				out.andNot(def[pc]);
+				out.or(use[pc]);
+				if (!out.equals(liveIn[pc])) {
+					liveIn[pc].or(out);
+					changed = true;
+				}
+			}
+		}
+	}
+
+	private void addLive(BitSet out, int pc) {
+		if (pc < liveIn.length) out.or(liveIn[pc]);
+	}
+
+	/**
+	 * Compute the registers read by an instruction, and those it always overwrites.
+	 *
+	 * @param i   The instruction.
+	 * @param use The registers read by this instruction.
+	 * @param def The registers written to by this instruction.
+	 */
+	private void useDef(int i, BitSet use, BitSet def) {
+		int a = GETARG_A(i), b = GETARG_B(i), c = GETARG_C(i);
+		switch (GET_OPCODE(i)) {
+			case OP_MOVE, OP_UNM, OP_NOT, OP_LEN -> {
+				use.set(b);
+				def.set(a);
+			}
+			// Closures also read any captured registers, but these are never unboxed anyway.
+			case OP_LOADK, OP_LOADKX, OP_LOADBOOL, OP_GETUPVAL, OP_NEWTABLE, OP_CLOSURE -> def.set(a);
+			case OP_LOADNIL -> def.set(a, a + b + 1);
+			case OP_GETTABUP -> {
+				useRK(use, c);
+				def.set(a);
+			}
+			case OP_GETTABLE -> {
+				use.set(b);
+				useRK(use, c);
+				def.set(a);
+			}
+			case OP_SETTABUP -> {
+				useRK(use, b);
+				useRK(use, c);
+			}
+			case OP_SETUPVAL, OP_TEST -> use.set(a);
+			case OP_SETTABLE -> {
+				use.set(a);
+				useRK(use, b);
+				useRK(use, c);
+			}
+			case OP_SELF -> {
+				use.set(b);
+				useRK(use, c);
+				def.set(a, a + 2);
+			}
+			case OP_ADD, OP_SUB, OP_MUL, OP_DIV, OP_MOD, OP_POW -> {
+				useRK(use, b);
+				useRK(use, c);
+				def.set(a);
+			}
+			case OP_CONCAT -> {
+				use.set(b, c + 1);
+				def.set(a);
+			}
+			case OP_EQ, OP_LT, OP_LE -> {
+				useRK(use, b);
+				useRK(use, c);
+			}
+			// R(A) is only written to if the test passes.
+			case OP_TESTSET -> use.set(b);
+			case OP_CALL -> {
+				useRange(use, a, b == 0 ? -1 : b);
+				if (c > 1) def.set(a, a + c - 1);
+			}
+			case OP_TAILCALL -> useRange(use, a, b == 0 ? -1 : b);
+			case OP_RETURN -> useRange(use, a, b == 0 ? -1 : b - 1);
+			case OP_FORLOOP, OP_FORPREP -> use.set(a, a + 3);
+			case OP_TFORCALL -> {
+				use.set(a, a + 3);
+				def.set(a + 3, a + 3 + c);
+			}
+			case OP_TFORLOOP -> use.set(a + 1);
+			case OP_SETLIST -> useRange(use, a, b == 0 ? -1 : b + 1);
+			// Variable-length varargs set an unknown number of registers, so we can't mark any as overwritten.
+			case OP_VARARG -> {
+				if (b > 1) def.set(a, a + b - 1);
+			}
+		}
+	}
+
+	private static void useRK(BitSet use, int rk) {
+		if (!ISK(rk)) use.set(rk);
+	}
+
+	private void useRange(BitSet use, int start, int count) {
+		use.set(start, count < 0 ? Math.max(registers, start + 1) : start + count);
+	}
+}
@@ -91,6 +91,8 @@ public final class BaseLib {
 		// remember next, and inext for use in pairs and ipairs
 		self.next = env.rawget("next");
 		self.inext = RegisteredFunction.ofS("inext", BaseLib::inext).create();
+		state.nextFunction = self.next;
+		state.inextFunction = self.inext;
 	}
 
 	private static LuaValue error(LuaState state, LuaValue arg1, LuaValue arg2) throws LuaError, LuaUncatchableError {